@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.PrintWriter;
+
+import android.os.SystemClock;
+
+/**
+ * Stops sending requests to a backend after a run of consecutive failures. Once the
+ * open interval has passed a single probe request is let through: if it succeeds the
+ * breaker closes again, otherwise it stays open for twice as long (up to a maximum).
+ */
+public class CircuitBreaker {
+
+    public static final int STATE_CLOSED = 0;
+    public static final int STATE_OPEN = 1;
+    public static final int STATE_HALF_OPEN = 2;
+
+    private final int mFailureThreshold;
+    private final long mMinOpenInterval;
+    private final long mMaxOpenInterval;
+
+    private int mState = STATE_CLOSED;
+    private int mConsecutiveFailures;
+    private long mOpenInterval;
+    private long mOpenedAt;
+
+    private long mTrips;
+    private long mShortCircuited;
+
+    /**
+     * @param failureThreshold consecutive failures that open the breaker
+     * @param minOpenInterval how long the breaker stays open after it first trips
+     * @param maxOpenInterval upper bound for the open interval after failed probes
+     */
+    public CircuitBreaker(int failureThreshold, long minOpenInterval, long maxOpenInterval) {
+        mFailureThreshold = failureThreshold;
+        mMinOpenInterval = minOpenInterval;
+        mMaxOpenInterval = maxOpenInterval;
+        mOpenInterval = minOpenInterval;
+    }
+
+    /**
+     * Returns whether a request may be sent now. While half open only the first caller
+     * gets to probe, everybody else is short-circuited until the probe reports back.
+     */
+    public synchronized boolean allowRequest() {
+        switch (mState) {
+            case STATE_CLOSED:
+                return true;
+            case STATE_OPEN:
+                if (SystemClock.elapsedRealtime() - mOpenedAt >= mOpenInterval) {
+                    mState = STATE_HALF_OPEN;
+                    return true;
+                }
+                break;
+        }
+        mShortCircuited++;
+        return false;
+    }
+
+    public synchronized void onSuccess() {
+        mState = STATE_CLOSED;
+        mConsecutiveFailures = 0;
+        mOpenInterval = mMinOpenInterval;
+    }
+
+    public synchronized void onFailure() {
+        mConsecutiveFailures++;
+        if (mState == STATE_HALF_OPEN) {
+            mOpenInterval = Math.min(mOpenInterval * 2, mMaxOpenInterval);
+            open();
+        } else if (mState == STATE_CLOSED && mConsecutiveFailures >= mFailureThreshold) {
+            open();
+        }
+    }
+
+    /**
+     * Reports that a request let through by allowRequest() was given up before it could
+     * tell anything about the backend. A pending probe is handed to the next caller.
+     */
+    public synchronized void onCancelled() {
+        if (mState == STATE_HALF_OPEN) {
+            mState = STATE_OPEN;
+            mOpenedAt = SystemClock.elapsedRealtime() - mOpenInterval;
+        }
+    }
+
+    public synchronized int getState() {
+        return mState;
+    }
+
+    private void open() {
+        mState = STATE_OPEN;
+        mOpenedAt = SystemClock.elapsedRealtime();
+        mTrips++;
+    }
+
+    private static String stateToString(int state) {
+        switch (state) {
+            case STATE_CLOSED: return "closed";
+            case STATE_OPEN: return "open";
+            case STATE_HALF_OPEN: return "half open";
+        }
+        return String.valueOf(state);
+    }
+
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix + "State: " + stateToString(mState));
+        if (mState == STATE_OPEN) {
+            long remaining = mOpenInterval - (SystemClock.elapsedRealtime() - mOpenedAt);
+            pw.print(" (" + Math.max(0, remaining / 1000) + "s left)");
+        }
+        pw.println();
+        pw.println(prefix + "Consecutive failures: " + mConsecutiveFailures
+                + " trips: " + mTrips + " short-circuited: " + mShortCircuited);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import android.os.SystemClock;
+
+/**
+ * Groups forecast fetches for different woeids into batches fetched with a single
+ * request. Requests join the open batch when they are submitted; the first of them to
+ * get a worker thread keeps the batch open until the window has passed, fetches the
+ * whole batch and hands each member its forecast. Members that get their thread later
+ * find their forecast ready without touching the network.
+ */
+public class ForecastBatcher {
+
+    public interface Fetcher {
+        /**
+         * Fetches the forecasts of all woeids at once. The returned array matches the
+         * woeids by index and holds null for the ones that couldn't be fetched; a null
+         * array means the whole fetch failed. urgent tells whether any of the members
+         * has a client waiting for it.
+         */
+        ForecastResult[] fetch(List<String> woeids, boolean urgent);
+    }
+
+    private static class Batch {
+        final long openedAt = SystemClock.elapsedRealtime();
+        final List<String> woeids = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        boolean claimed;
+        boolean closed;
+        boolean urgent;
+        ForecastResult[] results;
+    }
+
+    public static class Ticket {
+        private final Batch mBatch;
+        private final int mIndex;
+
+        private Ticket(Batch batch, int index) {
+            mBatch = batch;
+            mIndex = index;
+        }
+    }
+
+    private final Fetcher mFetcher;
+    private final long mWindow;
+    private final int mMaxSize;
+    private Batch mOpenBatch;
+
+    private long mBatches;
+    private long mBatchedRequests;
+    private int mMaxBatchSize;
+    private final LatencyStats mFetchLatency = new LatencyStats("Batch fetch latency");
+    private final LatencyStats mMemberWait = new LatencyStats("Batched member wait");
+
+    /**
+     * @param window how long a batch accepts new members after its first one joined
+     * @param maxSize number of woeids after which a new batch is started
+     */
+    public ForecastBatcher(Fetcher fetcher, long window, int maxSize) {
+        mFetcher = fetcher;
+        mWindow = window;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Adds the woeid to the open batch, starting a new one if needed. A single urgent
+     * member makes the whole batch urgent.
+     */
+    public synchronized Ticket enqueue(String woeid, boolean urgent) {
+        if (mOpenBatch == null || mOpenBatch.closed || mOpenBatch.woeids.size() >= mMaxSize) {
+            mOpenBatch = new Batch();
+        }
+        mOpenBatch.urgent |= urgent;
+        int index = mOpenBatch.woeids.indexOf(woeid);
+        if (index < 0) {
+            mOpenBatch.woeids.add(woeid);
+            index = mOpenBatch.woeids.size() - 1;
+        }
+        return new Ticket(mOpenBatch, index);
+    }
+
+    /**
+     * Returns the forecast of the ticket's woeid, fetching the whole batch if nobody has
+     * started doing so yet. Returns null if the batch turned out to hold just this woeid
+     * (a plain request does the job then), if the fetch failed or if the calling thread
+     * got interrupted; the caller is expected to fall back to fetching it alone.
+     */
+    public ForecastResult await(Ticket ticket) {
+        final Batch batch = ticket.mBatch;
+        boolean leader;
+        synchronized (this) {
+            leader = !batch.claimed;
+            batch.claimed = true;
+        }
+        if (!leader) {
+            long start = SystemClock.elapsedRealtime();
+            try {
+                batch.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            mMemberWait.record(SystemClock.elapsedRealtime() - start);
+            return batch.results != null ? batch.results[ticket.mIndex] : null;
+        }
+
+        boolean interrupted = false;
+        long remaining = batch.openedAt + mWindow - SystemClock.elapsedRealtime();
+        if (remaining > 0) {
+            try {
+                Thread.sleep(remaining);
+            } catch (InterruptedException e) {
+                // The other members still need their forecasts, cut the window short
+                interrupted = true;
+            }
+        }
+        List<String> woeids;
+        boolean urgent;
+        synchronized (this) {
+            batch.closed = true;
+            if (mOpenBatch == batch) {
+                mOpenBatch = null;
+            }
+            woeids = new ArrayList<>(batch.woeids);
+            urgent = batch.urgent;
+        }
+        try {
+            if (woeids.size() > 1) {
+                long start = SystemClock.elapsedRealtime();
+                ForecastResult[] results = mFetcher.fetch(woeids, urgent);
+                mFetchLatency.record(SystemClock.elapsedRealtime() - start);
+                synchronized (this) {
+                    mBatches++;
+                    mBatchedRequests += woeids.size();
+                    mMaxBatchSize = Math.max(mMaxBatchSize, woeids.size());
+                }
+                batch.results = results;
+            }
+        } finally {
+            // Members must never be left waiting, whatever happened to the fetch
+            batch.done.countDown();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return batch.results != null ? batch.results[ticket.mIndex] : null;
+    }
+
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "Batches: " + mBatches + " requests: " + mBatchedRequests
+                + " max size: " + mMaxBatchSize
+                + " round trips saved: " + (mBatchedRequests - mBatches));
+        if (mBatches > 0) {
+            pw.println(prefix + "Average size: " + ((float) mBatchedRequests / mBatches));
+        }
+        mFetchLatency.dump(pw, prefix);
+        mMemberWait.dump(pw, prefix);
+    }
+}
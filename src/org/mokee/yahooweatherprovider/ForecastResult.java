@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.util.ArrayList;
+
+import mokee.weather.WeatherInfo.DayForecast;
+
+/**
+ * The values picked from a weather.forecast document, whichever parser read it.
+ */
+public class ForecastResult {
+
+    private final int mForecastDays;
+
+    String city;
+    String temperatureUnit, speedUnit;
+    int windDirection, conditionCode;
+    float humidity, temperature, windSpeed;
+    boolean hasCondition;
+    ArrayList<DayForecast> forecasts = new ArrayList<DayForecast>();
+
+    public ForecastResult(int forecastDays) {
+        mForecastDays = forecastDays;
+    }
+
+    void setLocation(String city) {
+        this.city = city;
+    }
+
+    void setUnits(String temperature, String speed) {
+        temperatureUnit = temperature;
+        speedUnit = speed;
+    }
+
+    void setWind(String direction, String speed) {
+        windDirection = (int) stringToFloat(direction, -1);
+        windSpeed = stringToFloat(speed, -1);
+    }
+
+    void setAtmosphere(String humidity) {
+        this.humidity = stringToFloat(humidity, -1);
+    }
+
+    void setCondition(String code, String temp) {
+        conditionCode = (int) stringToFloat(code, -1);
+        temperature = stringToFloat(temp, Float.NaN);
+        hasCondition = true;
+    }
+
+    void addForecast(String low, String high) {
+        if (forecasts.size() >= mForecastDays) {
+            return;
+        }
+        double lowValue = stringToDouble(low, Double.NaN);
+        double highValue = stringToDouble(high, Double.NaN);
+        if (!Double.isNaN(lowValue) && !Double.isNaN(highValue) && conditionCode >= 0) {
+            forecasts.add(new DayForecast.Builder(conditionCode)
+                    .setLow(lowValue).setHigh(highValue).build());
+        }
+    }
+
+    /**
+     * Returns true once the current condition and all the wanted forecast days have been
+     * seen; nothing further in the document changes the result.
+     */
+    public boolean isFilled() {
+        return hasCondition && forecasts.size() >= mForecastDays;
+    }
+
+    public boolean isComplete() {
+        return temperatureUnit != null && speedUnit != null && conditionCode >= 0
+                && !Float.isNaN(temperature) && !forecasts.isEmpty();
+    }
+
+    private static float stringToFloat(String value, float defaultValue) {
+        try {
+            if (value != null) {
+                return Float.parseFloat(value);
+            }
+        } catch (NumberFormatException e) {
+            // fall through to the return line below
+        }
+        return defaultValue;
+    }
+
+    private static double stringToDouble(String value, double defaultValue) {
+        try {
+            if (value != null) {
+                return Double.parseDouble(value);
+            }
+        } catch (NumberFormatException e) {
+            // fall through to the return line below
+        }
+        return defaultValue;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+/**
+ * Maps coordinates to geohash cells, so that nearby locations share a cache key.
+ * A precision of 5 characters gives cells of roughly 4.9km x 4.9km.
+ */
+public class GeoHash {
+
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    private GeoHash() {
+    }
+
+    public static String encode(double latitude, double longitude, int precision) {
+        double minLat = -90, maxLat = 90;
+        double minLon = -180, maxLon = 180;
+        char[] hash = new char[precision];
+        boolean evenBit = true;
+        int bit = 0;
+        int ch = 0;
+        int length = 0;
+
+        while (length < precision) {
+            if (evenBit) {
+                double mid = (minLon + maxLon) / 2;
+                if (longitude >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLon = mid;
+                } else {
+                    ch = ch << 1;
+                    maxLon = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (latitude >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLat = mid;
+                } else {
+                    ch = ch << 1;
+                    maxLat = mid;
+                }
+            }
+            evenBit = !evenBit;
+
+            if (++bit == 5) {
+                hash[length++] = BASE32[ch];
+                bit = 0;
+                ch = 0;
+            }
+        }
+        return new String(hash);
+    }
+}
@@ -16,52 +16,729 @@
 
 package org.mokee.yahooweatherprovider;
 
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import android.net.http.HttpResponseCache;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.util.Log;
 
 public class HttpRetriever {
 
-    public static String retrieve(String url) {
+    private static final String TAG = HttpRetriever.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    // Forecast and place documents are a few KB each, this is plenty for the
+    // handful of locations a device asks for
+    private static final long HTTP_CACHE_SIZE = 1024L * 1024L;
+
+    // HttpURLConnection keeps idle sockets in a process wide pool (and the default
+    // SSLSocketFactory keeps the TLS sessions) as long as the response body is fully
+    // consumed and the stream is closed instead of calling disconnect(). A geo location
+    // update hits query.yahooapis.com twice back to back, so keep a few of them around.
+    private static final int MAX_IDLE_CONNECTIONS = 2;
+    private static final long KEEP_ALIVE_DURATION_MS = 1000L * 60L * 5L;
+
+    static {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+        System.setProperty("http.keepAliveDuration", String.valueOf(KEEP_ALIVE_DURATION_MS));
+    }
+
+    // Whatever a handler leaves unread is skipped so the socket can still be pooled,
+    // but only up to this amount; beyond that it's cheaper to drop the connection
+    private static final int MAX_DRAIN_BYTES = 8 * 1024;
+    private static final int BUFFER_SIZE = 4 * 1024;
+
+    // Setting Accept-Encoding ourselves turns off the transparent gzip support of
+    // HttpURLConnection, which lets us see (and count) the compressed bytes
+    private static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    // Without timeouts a stalled server keeps a thread blocked forever. The overall
+    // deadline bounds the whole exchange, including a body trickling in slowly.
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 15 * 1000;
+    private static final int DEFAULT_READ_TIMEOUT_MS = 15 * 1000;
+    private static final long DEFAULT_DEADLINE_MS = 45L * 1000L;
+    private static volatile int sConnectTimeout = DEFAULT_CONNECT_TIMEOUT_MS;
+    private static volatile int sReadTimeout = DEFAULT_READ_TIMEOUT_MS;
+    private static volatile long sDeadline = DEFAULT_DEADLINE_MS;
+
+    private static final ScheduledExecutorService sWatchdog =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "HttpRetriever watchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private static final AtomicLong sDeadlinesExpired = new AtomicLong();
+
+    // Hedging only kicks in once there are enough header latencies to derive the p95
+    // from, never sooner than MIN_HEDGE_DELAY_MS, and for at most MAX_HEDGE_PERCENT of
+    // the requests so a slow backend doesn't see its load doubled
+    private static final int MIN_HEDGE_SAMPLES = 20;
+    private static final long MIN_HEDGE_DELAY_MS = 500L;
+    private static final int MAX_HEDGE_PERCENT = 5;
+    private static volatile boolean sHedgingEnabled;
+    private static final ExecutorService sHedgeExecutor = new ThreadPoolExecutor(0, 4,
+            30L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "HttpRetriever attempt");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private static final LatencyStats sHeaderLatency = new LatencyStats("Header latency");
+    private static final AtomicLong sRequests = new AtomicLong();
+    private static final AtomicLong sHedgesFired = new AtomicLong();
+    private static final AtomicLong sHedgesWon = new AtomicLong();
+    private static final AtomicLong sHedgesDenied = new AtomicLong();
+
+    // Failed requests are retried up to MAX_ATTEMPTS times in total, sleeping a random
+    // time up to INITIAL_BACKOFF_MS, doubled per retry and capped at MAX_BACKOFF_MS. Each
+    // host gets RETRY_BUDGET retries, one coming back every RETRY_BUDGET_REFILL_MS, and
+    // the whole process 20 per ten minutes, so retries can't multiply the load of a
+    // backend that is already struggling.
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long INITIAL_BACKOFF_MS = 1000L;
+    private static final long MAX_BACKOFF_MS = 8L * 1000L;
+    private static final int RETRY_BUDGET = 5;
+    private static final long RETRY_BUDGET_REFILL_MS = 60L * 1000L;
+    private static volatile RateLimiter sRetryBudget = newRetryBudget();
+    private static final AtomicLong sRetries = new AtomicLong();
+    private static final AtomicLong sRetriesDenied = new AtomicLong();
+
+    // After five failures in a row the backend is left alone for 30 seconds, doubling
+    // up to 10 minutes while it keeps failing; in the meantime requests are answered
+    // from the HTTP cache as long as the entry is at most MAX_STALE_SECONDS old
+    private static volatile CircuitBreaker sCircuitBreaker = newCircuitBreaker();
+    private static final long MAX_STALE_SECONDS = 24L * 60L * 60L;
+
+    private static final AtomicLong sBytesOnWire = new AtomicLong();
+    private static final AtomicLong sBytesDecoded = new AtomicLong();
+
+    public interface ResponseHandler<T> {
+        /**
+         * Consumes the decoded response body as it arrives from the socket. The stream is
+         * closed by the caller once this method returns. charset is the one announced in
+         * the Content-Type header, or null if the server didn't specify one.
+         */
+        T handleResponse(InputStream inputStream, String charset) throws IOException;
+    }
+
+    /**
+     * Installs the on disk response cache used by every connection of the process. The
+     * cache keeps the ETag / Last-Modified validators and the Cache-Control max-age of
+     * each response, answers fresh entries without touching the network, turns stale
+     * ones into conditional requests and evicts the least recently used entries once
+     * it grows above HTTP_CACHE_SIZE.
+     */
+    public static void installCache(File cacheDir) {
+        if (HttpResponseCache.getInstalled() != null) {
+            return;
+        }
+        try {
+            HttpResponseCache.install(new File(cacheDir, "http"), HTTP_CACHE_SIZE);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not install HTTP response cache", e);
+        }
+    }
+
+    /**
+     * Sets the connect and read (per blocking read) timeouts and the deadline for a whole
+     * retrieve() call including its retries, all in milliseconds. Only meant for tests,
+     * which need them shorter than a stalling server.
+     */
+    static void setTimeouts(int connectTimeout, int readTimeout, long deadline) {
+        sConnectTimeout = connectTimeout;
+        sReadTimeout = readTimeout;
+        sDeadline = deadline;
+    }
+
+    /**
+     * Restores the default timeouts and forgets the failures and retries seen so far.
+     * Only meant for tests, which would otherwise trip the circuit breaker for each other.
+     */
+    static void reset() {
+        setTimeouts(DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS, DEFAULT_DEADLINE_MS);
+        sRetryBudget = newRetryBudget();
+        sCircuitBreaker = newCircuitBreaker();
+    }
+
+    private static RateLimiter newRetryBudget() {
+        return new RateLimiter(8, RETRY_BUDGET, RETRY_BUDGET_REFILL_MS, 20, 30L * 1000L);
+    }
+
+    private static CircuitBreaker newCircuitBreaker() {
+        return new CircuitBreaker(5, 30L * 1000L, 10L * 60L * 1000L);
+    }
+
+    public static void flushCache() {
+        HttpResponseCache cache = HttpResponseCache.getInstalled();
+        if (cache != null) {
+            cache.flush();
+        }
+    }
+
+    /**
+     * Streams the response body of url into the handler and returns its result, or null
+     * if the request failed. Cancelling the signal aborts the exchange right away, even
+     * while blocked connecting or reading, and makes this return null.
+     *
+     * Network errors and 5xx responses are retried with exponential backoff as long as
+     * the body hasn't been handed to the handler yet and the retry budget of the host
+     * allows it. While the circuit breaker is open no request reaches the network: only
+     * the HTTP cache is consulted, even if its entry is stale.
+     */
+    public static <T> T retrieve(String url, ResponseHandler<T> handler,
+            CancellationSignal signal) {
+        if (signal != null && signal.isCanceled()) {
+            return null;
+        }
         URL targetURL;
         try {
             targetURL = new URL(url);
         } catch (MalformedURLException e) {
             return null;
         }
-        HttpURLConnection urlConnection = null;
-        String response;
+        final boolean onlyIfCached = !sCircuitBreaker.allowRequest();
+        // The deadline bounds the whole call, retries and backoff included
+        final long deadline = SystemClock.elapsedRealtime() + sDeadline;
+        for (int attempt = 0; ; attempt++) {
+            Exchange exchange = new Exchange(targetURL, onlyIfCached);
+            try {
+                T response = retrieve(exchange, handler, signal,
+                        deadline - SystemClock.elapsedRealtime());
+                if (!onlyIfCached) {
+                    sCircuitBreaker.onSuccess();
+                }
+                return response;
+            } catch (IOException e) {
+                if (onlyIfCached) {
+                    return null;
+                }
+                if (exchange.isCancelled()) {
+                    if (DEBUG) Log.v(TAG, "Aborted " + url);
+                    if (exchange.isExpired()) {
+                        sCircuitBreaker.onFailure();
+                    } else {
+                        sCircuitBreaker.onCancelled();
+                    }
+                    return null;
+                }
+                if (Thread.currentThread().isInterrupted()
+                        || (signal != null && signal.isCanceled())) {
+                    // AsyncTask.cancel(true) interrupts a hedged exchange waiting for its
+                    // attempts before the signal gets to cancel it
+                    if (DEBUG) Log.v(TAG, "Interrupted " + url);
+                    sCircuitBreaker.onCancelled();
+                    return null;
+                }
+                int responseCode = exchange.getResponseCode();
+                if (responseCode >= 400 && responseCode < 500) {
+                    // The server is fine, the request isn't; retrying won't help
+                    sCircuitBreaker.onSuccess();
+                    return null;
+                }
+                sCircuitBreaker.onFailure();
+                if (exchange.isResponseStarted() || attempt + 1 >= MAX_ATTEMPTS) {
+                    return null;
+                }
+                long delay = getBackoffDelay(attempt);
+                if (deadline - SystemClock.elapsedRealtime() <= delay) {
+                    // No time left for another attempt after backing off
+                    return null;
+                }
+                if (!sRetryBudget.tryAcquire(targetURL.getHost())) {
+                    sRetriesDenied.incrementAndGet();
+                    return null;
+                }
+                if (!sCircuitBreaker.allowRequest()) {
+                    return null;
+                }
+                sRetries.incrementAndGet();
+                if (DEBUG) Log.d(TAG, "Retrying " + url + " after " + e);
+                if (!backoff(delay, signal)) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    private static <T> T retrieve(final Exchange exchange, ResponseHandler<T> handler,
+            CancellationSignal signal, long timeout) throws IOException {
+        ScheduledFuture<?> watchdog = null;
+        boolean reusable = false;
         try {
-            urlConnection = (HttpURLConnection) targetURL.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.setDoInput(true);
-            urlConnection.connect();
-            response = readStream(urlConnection.getInputStream());
-        } catch (IOException e) {
-            return null;
+            watchdog = sWatchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sDeadlinesExpired.incrementAndGet();
+                    exchange.expire();
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+            if (signal != null) {
+                // Runs right away if the signal was cancelled in the meantime. Closing the
+                // socket makes the blocked connect or read throw.
+                signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                    @Override
+                    public void onCancel() {
+                        exchange.cancel();
+                    }
+                });
+            }
+            sRequests.incrementAndGet();
+            HttpURLConnection urlConnection = sHedgingEnabled
+                    ? connectHedged(exchange) : connect(exchange);
+            if (DEBUG) Log.v(TAG, "Response " + urlConnection.getResponseCode()
+                    + " for " + exchange.mUrl);
+            InputStream rawStream = new CountingInputStream(urlConnection.getInputStream(),
+                    sBytesOnWire);
+            InputStream inputStream = new CountingInputStream(
+                    decode(rawStream, urlConnection.getContentEncoding()), sBytesDecoded);
+            exchange.setResponseStarted();
+            T response = handler.handleResponse(inputStream,
+                    getCharset(urlConnection.getContentType()));
+            // Once the watchdog has fired the connection is gone anyway
+            if (watchdog.cancel(false)) {
+                try {
+                    if (drain(inputStream) && drain(rawStream)) {
+                        // The body was read up to EOF, closing the stream hands the
+                        // socket back to the pool
+                        inputStream.close();
+                        reusable = true;
+                    }
+                } catch (IOException e) {
+                    // The handler already has its result, only the connection is lost
+                    if (DEBUG) Log.v(TAG, "Could not drain " + exchange.mUrl, e);
+                }
+            }
+            return response;
         } finally {
-            if (urlConnection != null) urlConnection.disconnect();
+            if (watchdog != null) watchdog.cancel(false);
+            if (signal != null) signal.setOnCancelListener(null);
+            if (!reusable) exchange.abort();
+        }
+    }
+
+    /**
+     * Returns how long to wait before the retry following the given attempt. Uses full
+     * jitter so clients failing together don't retry in lockstep.
+     */
+    private static long getBackoffDelay(int attempt) {
+        long maxDelay = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << attempt);
+        return ThreadLocalRandom.current().nextLong(maxDelay + 1);
+    }
+
+    /**
+     * Sleeps before a retry, returns false if cancelled or interrupted meanwhile.
+     */
+    private static boolean backoff(long delay, CancellationSignal signal) {
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
-        return response;
+        return signal == null || !signal.isCanceled();
+    }
+
+    /**
+     * Enables hedging: when the first attempt of an exchange has not received the
+     * response headers after the p95 of recent header latencies, an identical second
+     * attempt is sent and whichever gets its headers first is used. Hedges are capped
+     * at MAX_HEDGE_PERCENT of all requests.
+     */
+    public static void setHedgingEnabled(boolean enabled) {
+        sHedgingEnabled = enabled;
     }
 
-    private static String readStream(InputStream inputStream) {
-        BufferedReader br;
-        br = new BufferedReader(new InputStreamReader(inputStream));
-        StringBuilder builder = new StringBuilder();
-        String line;
+    private static HttpURLConnection connect(Exchange exchange) throws IOException {
+        return exchange.newAttempt(false).call();
+    }
+
+    private static HttpURLConnection connectHedged(Exchange exchange) throws IOException {
+        long delay = getHedgeDelay();
+        if (delay < 0) {
+            return connect(exchange);
+        }
+        CompletionService<HttpURLConnection> completionService =
+                new ExecutorCompletionService<HttpURLConnection>(sHedgeExecutor);
+        try {
+            completionService.submit(exchange.newAttempt(false));
+        } catch (RejectedExecutionException e) {
+            // All attempt threads are busy, don't wait for one
+            return connect(exchange);
+        }
+        int pending = 1;
         try {
-            while ((line = br.readLine()) != null) {
-                builder.append(line);
+            Future<HttpURLConnection> done = completionService.poll(delay,
+                    TimeUnit.MILLISECONDS);
+            if (done == null && tryAcquireHedge()) {
+                if (DEBUG) Log.v(TAG, "Hedging " + exchange.mUrl + " after " + delay + "ms");
+                try {
+                    completionService.submit(exchange.newAttempt(true));
+                    pending++;
+                } catch (RejectedExecutionException e) {
+                    sHedgesFired.decrementAndGet();
+                    sHedgesDenied.incrementAndGet();
+                }
             }
-        } catch (IOException e) {
-            //Unable to read from the stream
+            IOException failure = null;
+            while (pending > 0) {
+                if (done == null) {
+                    done = completionService.take();
+                }
+                pending--;
+                try {
+                    Attempt winner = exchange.getAttempt(done.get());
+                    if (winner.mHedge) {
+                        sHedgesWon.incrementAndGet();
+                    }
+                    exchange.abortAllBut(winner);
+                    return winner.mConnection;
+                } catch (ExecutionException e) {
+                    // Give the other attempt a chance before giving up
+                    failure = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+                done = null;
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Returns how long to wait for the headers of the first attempt before hedging, or
+     * -1 if there are too few samples to tell what slow means.
+     */
+    private static long getHedgeDelay() {
+        if (sHeaderLatency.getCount() < MIN_HEDGE_SAMPLES) {
+            return -1;
+        }
+        return Math.max(MIN_HEDGE_DELAY_MS, sHeaderLatency.getPercentile(95));
+    }
+
+    private static boolean tryAcquireHedge() {
+        while (true) {
+            long fired = sHedgesFired.get();
+            if ((fired + 1) * 100 > sRequests.get() * MAX_HEDGE_PERCENT) {
+                sHedgesDenied.incrementAndGet();
+                return false;
+            }
+            if (sHedgesFired.compareAndSet(fired, fired + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private static InputStream decode(InputStream inputStream, String contentEncoding)
+            throws IOException {
+        if (contentEncoding == null) {
+            return inputStream;
+        }
+        contentEncoding = contentEncoding.trim();
+        if (contentEncoding.equalsIgnoreCase("gzip") || contentEncoding.equalsIgnoreCase("x-gzip")) {
+            return new GZIPInputStream(inputStream, BUFFER_SIZE);
+        } else if (contentEncoding.equalsIgnoreCase("deflate")) {
+            return new InflaterInputStream(inputStream);
+        }
+        return inputStream;
+    }
+
+    private static String getCharset(String contentType) {
+        if (contentType == null) {
             return null;
         }
-        return builder.toString();
+        for (String param : contentType.split(";")) {
+            param = param.trim();
+            if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                String charset = param.substring(8).trim();
+                if (charset.length() > 1 && charset.startsWith("\"") && charset.endsWith("\"")) {
+                    charset = charset.substring(1, charset.length() - 1);
+                }
+                return charset.isEmpty() ? null : charset;
+            }
+        }
+        return null;
+    }
+
+    static Charset toCharset(String charset) {
+        if (charset != null) {
+            try {
+                return Charset.forName(charset);
+            } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                // YQL always answers in UTF-8, fall through
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    public static void dump(PrintWriter pw, String prefix) {
+        long onWire = sBytesOnWire.get();
+        long decoded = sBytesDecoded.get();
+        pw.println(prefix + "Bytes on wire: " + onWire);
+        pw.println(prefix + "Bytes decoded: " + decoded);
+        if (decoded > 0) {
+            pw.println(prefix + "Compression ratio: " + ((float) onWire / decoded));
+        }
+        pw.println(prefix + "Deadlines expired: " + sDeadlinesExpired.get());
+        sHeaderLatency.dump(pw, prefix);
+        pw.println(prefix + "Hedging: enabled=" + sHedgingEnabled
+                + " requests=" + sRequests.get()
+                + " fired=" + sHedgesFired.get()
+                + " won=" + sHedgesWon.get()
+                + " denied=" + sHedgesDenied.get());
+        pw.println(prefix + "Retries: " + sRetries.get()
+                + " denied by budget: " + sRetriesDenied.get());
+        sRetryBudget.dump(pw, prefix + "  ");
+        pw.println(prefix + "Circuit breaker:");
+        sCircuitBreaker.dump(pw, prefix + "  ");
+        HttpResponseCache cache = HttpResponseCache.getInstalled();
+        if (cache != null) {
+            pw.println(prefix + "Cache: requests=" + cache.getRequestCount()
+                    + " network=" + cache.getNetworkCount()
+                    + " hits=" + cache.getHitCount()
+                    + " size=" + cache.size() + "/" + cache.maxSize());
+        }
+    }
+
+    private static boolean drain(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[256];
+        int drained = 0;
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            drained += read;
+            if (drained > MAX_DRAIN_BYTES) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The attempts made for one retrieve() call. Aborting the exchange disconnects
+     * every attempt, including the ones that have not opened their connection yet.
+     */
+    private static class Exchange {
+        final URL mUrl;
+        final boolean mOnlyIfCached;
+        private final List<Attempt> mAttempts = new ArrayList<Attempt>(2);
+        private boolean mAborted;
+        private boolean mCancelled;
+        private boolean mExpired;
+        private volatile boolean mResponseStarted;
+
+        Exchange(URL url, boolean onlyIfCached) {
+            mUrl = url;
+            mOnlyIfCached = onlyIfCached;
+        }
+
+        /**
+         * Aborts the exchange because it was cancelled or ran past its deadline, as
+         * opposed to being cleaned up after a failure.
+         */
+        synchronized void cancel() {
+            mCancelled = true;
+            abort();
+        }
+
+        synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        synchronized void expire() {
+            mExpired = true;
+            cancel();
+        }
+
+        synchronized boolean isExpired() {
+            return mExpired;
+        }
+
+        void setResponseStarted() {
+            mResponseStarted = true;
+        }
+
+        boolean isResponseStarted() {
+            return mResponseStarted;
+        }
+
+        /**
+         * Returns the status code of the attempt that got furthest, or -1 if none of
+         * them received a response.
+         */
+        synchronized int getResponseCode() {
+            int responseCode = -1;
+            for (Attempt attempt : mAttempts) {
+                responseCode = Math.max(responseCode, attempt.mResponseCode);
+            }
+            return responseCode;
+        }
+
+        synchronized Attempt newAttempt(boolean hedge) {
+            Attempt attempt = new Attempt(this, hedge);
+            mAttempts.add(attempt);
+            return attempt;
+        }
+
+        synchronized Attempt getAttempt(HttpURLConnection connection) {
+            for (Attempt attempt : mAttempts) {
+                if (attempt.mConnection == connection) {
+                    return attempt;
+                }
+            }
+            throw new IllegalStateException("Unknown connection");
+        }
+
+        synchronized boolean isAborted() {
+            return mAborted;
+        }
+
+        synchronized void abort() {
+            mAborted = true;
+            for (Attempt attempt : mAttempts) {
+                attempt.abort();
+            }
+        }
+
+        synchronized void abortAllBut(Attempt winner) {
+            for (Attempt attempt : mAttempts) {
+                if (attempt != winner) {
+                    attempt.abort();
+                }
+            }
+        }
+    }
+
+    private static class Attempt implements Callable<HttpURLConnection> {
+        private final Exchange mExchange;
+        final boolean mHedge;
+        volatile HttpURLConnection mConnection;
+        volatile int mResponseCode = -1;
+        private volatile boolean mAborted;
+
+        Attempt(Exchange exchange, boolean hedge) {
+            mExchange = exchange;
+            mHedge = hedge;
+        }
+
+        /**
+         * Opens the connection and waits for the response headers.
+         */
+        @Override
+        public HttpURLConnection call() throws IOException {
+            long start = SystemClock.elapsedRealtime();
+            HttpURLConnection connection = (HttpURLConnection) mExchange.mUrl.openConnection();
+            connection.setConnectTimeout(sConnectTimeout);
+            connection.setReadTimeout(sReadTimeout);
+            connection.setRequestMethod("GET");
+            connection.setDoInput(true);
+            connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+            connection.setUseCaches(true);
+            if (mExchange.mOnlyIfCached) {
+                // Answered with 504 if there is nothing usable in the cache
+                connection.setRequestProperty("Cache-Control",
+                        "only-if-cached, max-stale=" + MAX_STALE_SECONDS);
+            }
+            mConnection = connection;
+            // abort() may have run before mConnection was set
+            if (mAborted || mExchange.isAborted()) {
+                connection.disconnect();
+                throw new IOException("Aborted");
+            }
+            connection.connect();
+            mResponseCode = connection.getResponseCode();
+            if (mAborted) {
+                connection.disconnect();
+                throw new IOException("Aborted");
+            }
+            sHeaderLatency.record(SystemClock.elapsedRealtime() - start);
+            if (mResponseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                throw new IOException("HTTP " + mResponseCode + " for " + mExchange.mUrl);
+            }
+            return connection;
+        }
+
+        void abort() {
+            mAborted = true;
+            HttpURLConnection connection = mConnection;
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong mCounter;
+
+        CountingInputStream(InputStream in, AtomicLong counter) {
+            super(in);
+            mCounter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCounter.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCounter.addAndGet(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            if (skipped > 0) {
+                mCounter.addAndGet(skipped);
+            }
+            return skipped;
+        }
     }
 }
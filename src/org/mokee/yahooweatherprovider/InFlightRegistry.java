@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.PrintWriter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+
+/**
+ * Tracks the work started for each request while it is running. Entries must be removed
+ * when the request completes, fails or is cancelled; the registry never holds on to a
+ * request beyond that.
+ */
+public class InFlightRegistry<K, T> {
+
+    // Upper bounds (exclusive) of the age histogram buckets, the last bucket is open
+    private static final long[] AGE_BUCKETS_MS = new long[] {
+        1000L, 5000L, 30000L, 120000L
+    };
+
+    private static class Entry<T> {
+        final T task;
+        final long startTime;
+
+        Entry(T task) {
+            this.task = task;
+            this.startTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private final ConcurrentHashMap<K, Entry<T>> mEntries = new ConcurrentHashMap<>();
+    private final AtomicLong mRegistered = new AtomicLong();
+    private final AtomicLong mRemoved = new AtomicLong();
+
+    public void register(K key, T task) {
+        mEntries.put(key, new Entry<>(task));
+        mRegistered.incrementAndGet();
+    }
+
+    /**
+     * Returns how long ago the key was registered, or -1 if it isn't registered.
+     */
+    public long getAge(K key) {
+        Entry<T> entry = mEntries.get(key);
+        return entry != null ? SystemClock.elapsedRealtime() - entry.startTime : -1;
+    }
+
+    public T remove(K key) {
+        Entry<T> entry = mEntries.remove(key);
+        if (entry == null) {
+            return null;
+        }
+        mRemoved.incrementAndGet();
+        return entry.task;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        long now = SystemClock.elapsedRealtime();
+        int[] histogram = new int[AGE_BUCKETS_MS.length + 1];
+        for (Entry<T> entry : mEntries.values()) {
+            long age = now - entry.startTime;
+            int bucket = 0;
+            while (bucket < AGE_BUCKETS_MS.length && age >= AGE_BUCKETS_MS[bucket]) {
+                bucket++;
+            }
+            histogram[bucket]++;
+        }
+
+        StringBuilder ages = new StringBuilder();
+        for (int i = 0; i < histogram.length; i++) {
+            if (i > 0) ages.append(' ');
+            ages.append(i < AGE_BUCKETS_MS.length
+                    ? "<" + AGE_BUCKETS_MS[i] + "ms" : ">=" + AGE_BUCKETS_MS[i - 1] + "ms");
+            ages.append('=').append(histogram[i]);
+        }
+        pw.println(prefix + "In flight: " + size() + " registered: " + mRegistered.get()
+                + " removed: " + mRemoved.get());
+        pw.println(prefix + "Ages: " + ages);
+    }
+}
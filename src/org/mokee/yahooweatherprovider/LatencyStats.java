@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latency samples and reports percentiles over them.
+ */
+public class LatencyStats {
+
+    private static final int MAX_SAMPLES = 256;
+
+    private final String mName;
+    private final long[] mSamples = new long[MAX_SAMPLES];
+    private int mNext;
+    private long mCount;
+
+    public LatencyStats(String name) {
+        mName = name;
+    }
+
+    public synchronized void record(long latencyMs) {
+        mSamples[mNext] = latencyMs;
+        mNext = (mNext + 1) % MAX_SAMPLES;
+        mCount++;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getPercentile(int percentile) {
+        int size = (int) Math.min(mCount, MAX_SAMPLES);
+        if (size == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(mSamples, size);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * size) - 1;
+        return sorted[Math.max(0, Math.min(index, size - 1))];
+    }
+
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + mName + ": count=" + mCount
+                + " p50=" + getPercentile(50) + "ms"
+                + " p90=" + getPercentile(90) + "ms"
+                + " p99=" + getPercentile(99) + "ms");
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.IOException;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+/**
+ * Decodes the response of a yql.query.multi query, whose results object holds one
+ * results object per sub-query, in the order the queries were given:
+ * {"query": {..., "results": {"results": [{...}, null, {...}]}}}. Each of them is handed
+ * to the handler together with its index, so the single query parsers can be reused.
+ */
+public class MultiQueryJsonParser {
+
+    public interface Handler {
+        /**
+         * Called for each non-empty sub-query result. The reader is positioned at the
+         * start of the results object, which must be consumed entirely.
+         */
+        void onResults(int index, JsonReader reader) throws IOException;
+    }
+
+    private final Handler mHandler;
+    private int mCount;
+
+    public MultiQueryJsonParser(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Reads a whole YQL response and returns the number of sub-query results it held,
+     * including the empty ones.
+     */
+    public int parse(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("query".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                parseQuery(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return mCount;
+    }
+
+    private void parseQuery(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("results".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                parseMultiResults(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void parseMultiResults(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"results".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            JsonToken token = reader.peek();
+            if (token == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    handleResults(reader);
+                }
+                reader.endArray();
+            } else {
+                // A single sub-query isn't wrapped in an array
+                handleResults(reader);
+            }
+        }
+        reader.endObject();
+    }
+
+    private void handleResults(JsonReader reader) throws IOException {
+        int index = mCount++;
+        if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+            mHandler.onResults(index, reader);
+        } else {
+            // Sub-queries without results show up as null
+            reader.skipValue();
+        }
+    }
+}
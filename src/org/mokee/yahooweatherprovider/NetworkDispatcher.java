@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Sits in front of HttpRetriever and lines up the requests nobody is waiting for
+ * (background revalidations and prefetches) with network activity that happens anyway.
+ * Waking up the cellular radio costs the same whether it then carries one request or
+ * ten, and it stays in a high power state for a while after the last packet, so
+ * non-urgent requests are held until the radio is active: while other requests of ours
+ * are in flight or their tail hasn't passed, when the system reports the default network
+ * went active, when a user initiated request is about to go out, or at the latest after
+ * MAX_HOLD_MS, at which point everything held goes out in one burst. Requests somebody
+ * is waiting for are never held.
+ */
+public class NetworkDispatcher {
+
+    private static final String TAG = NetworkDispatcher.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    // Roughly how long a cellular radio stays in its high power state after the last
+    // transfer; a request starting later than this after the previous one wakes it up
+    private static final long RADIO_TAIL_MS = 10L * 1000L;
+    private static final long MAX_HOLD_MS = 60L * 1000L;
+    // How long a burst stays open for held requests to start
+    private static final long BURST_WINDOW_MS = 2L * 1000L;
+    private static final long HOUR_MS = 60L * 60L * 1000L;
+
+    private static final Object sLock = new Object();
+    private static final long sStartTime = SystemClock.elapsedRealtime();
+    private static ConnectivityManager sConnectivityManager;
+    private static int sInFlight;
+    private static long sLastActivity = -RADIO_TAIL_MS;
+    private static long sBurstUntil;
+    private static int sHolding;
+
+    private static final ArrayDeque<Long> sRecentWakeUps = new ArrayDeque<>();
+    private static long sWakeUps;
+    private static long sUrgentRequests;
+    private static long sDeferredRequests;
+    private static long sBurstsByTimeout;
+    private static long sBurstsByUrgent;
+    private static long sBurstsByNetwork;
+    private static final LatencyStats sHoldTime = new LatencyStats("Hold time");
+
+    /**
+     * Starts following the activity of the default network, so held requests can ride
+     * along when other apps wake the radio up.
+     */
+    public static void install(Context context) {
+        synchronized (sLock) {
+            if (sConnectivityManager != null) {
+                return;
+            }
+            sConnectivityManager = (ConnectivityManager) context.getApplicationContext()
+                    .getSystemService(Context.CONNECTIVITY_SERVICE);
+        }
+        sConnectivityManager.addDefaultNetworkActiveListener(
+                new ConnectivityManager.OnNetworkActiveListener() {
+                    @Override
+                    public void onNetworkActive() {
+                        synchronized (sLock) {
+                            if (sHolding > 0) {
+                                sBurstsByNetwork++;
+                            }
+                            openBurstLocked();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Like HttpRetriever.retrieve(url, handler, signal). Unless urgent, the request waits
+     * for the radio to be active first; cancelling the signal while waiting makes this
+     * return null.
+     */
+    public static <T> T retrieve(String url, HttpRetriever.ResponseHandler<T> handler,
+            CancellationSignal signal, boolean urgent) {
+        if (!urgent && !awaitBurst(signal)) {
+            return null;
+        }
+        synchronized (sLock) {
+            long now = SystemClock.elapsedRealtime();
+            if (sInFlight == 0 && now - sLastActivity >= RADIO_TAIL_MS) {
+                sWakeUps++;
+                sRecentWakeUps.addLast(now);
+                pruneWakeUpsLocked(now);
+            }
+            sInFlight++;
+            if (urgent) {
+                sUrgentRequests++;
+                if (sHolding > 0) {
+                    sBurstsByUrgent++;
+                    openBurstLocked();
+                }
+            }
+        }
+        try {
+            return HttpRetriever.retrieve(url, handler, signal);
+        } finally {
+            synchronized (sLock) {
+                sInFlight--;
+                sLastActivity = SystemClock.elapsedRealtime();
+            }
+        }
+    }
+
+    /**
+     * Lets the held requests go now, as a user initiated request is about to wake up the
+     * radio anyway.
+     */
+    public static void openBurst() {
+        synchronized (sLock) {
+            if (sHolding > 0) {
+                sBurstsByUrgent++;
+            }
+            openBurstLocked();
+        }
+    }
+
+    private static boolean awaitBurst(CancellationSignal signal) {
+        if (signal != null) {
+            signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    synchronized (sLock) {
+                        sLock.notifyAll();
+                    }
+                }
+            });
+        }
+        long start = SystemClock.elapsedRealtime();
+        try {
+            if (!holdUntilBurst(signal, start)) {
+                return false;
+            }
+        } finally {
+            // CancellationSignal waits for a cancel in progress before swapping
+            // listeners, and ours needs sLock, so never do this while holding it
+            if (signal != null) {
+                signal.setOnCancelListener(null);
+            }
+        }
+        if (DEBUG) Log.v(TAG, "Released request after " + (SystemClock.elapsedRealtime() - start) + "ms");
+        return true;
+    }
+
+    private static boolean holdUntilBurst(CancellationSignal signal, long start) {
+        long deadline = start + MAX_HOLD_MS;
+        synchronized (sLock) {
+            sHolding++;
+            try {
+                long now = start;
+                while (!isRadioActiveLocked(now)) {
+                    if (signal != null && signal.isCanceled()) {
+                        return false;
+                    }
+                    if (now >= deadline) {
+                        // Held long enough, take everybody else along
+                        sBurstsByTimeout++;
+                        openBurstLocked();
+                        break;
+                    }
+                    sLock.wait(deadline - now);
+                    now = SystemClock.elapsedRealtime();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                sHolding--;
+            }
+            long held = SystemClock.elapsedRealtime() - start;
+            if (held > 0) {
+                sDeferredRequests++;
+                sHoldTime.record(held);
+            }
+        }
+        return true;
+    }
+
+    private static boolean isRadioActiveLocked(long now) {
+        if (sInFlight > 0 || now - sLastActivity < RADIO_TAIL_MS || now < sBurstUntil) {
+            return true;
+        }
+        // Reports whether the radio is in its high power state; always true on networks
+        // where that isn't tracked, e.g. Wi-Fi, where holding requests gains nothing
+        return sConnectivityManager != null && sConnectivityManager.isDefaultNetworkActive();
+    }
+
+    private static void openBurstLocked() {
+        sBurstUntil = SystemClock.elapsedRealtime() + BURST_WINDOW_MS;
+        sLock.notifyAll();
+    }
+
+    private static void pruneWakeUpsLocked(long now) {
+        while (!sRecentWakeUps.isEmpty() && now - sRecentWakeUps.peekFirst() > HOUR_MS) {
+            sRecentWakeUps.removeFirst();
+        }
+    }
+
+    public static void dump(PrintWriter pw, String prefix) {
+        synchronized (sLock) {
+            long now = SystemClock.elapsedRealtime();
+            pruneWakeUpsLocked(now);
+            pw.println(prefix + "Radio wake-ups: " + sWakeUps
+                    + " in the last hour: " + sRecentWakeUps.size()
+                    + " per hour on average: "
+                    + (sWakeUps * HOUR_MS / Math.max(now - sStartTime, HOUR_MS)));
+            pw.println(prefix + "Requests: urgent=" + sUrgentRequests
+                    + " held=" + sDeferredRequests + " holding=" + sHolding
+                    + " in flight=" + sInFlight);
+            pw.println(prefix + "Bursts: timeout=" + sBurstsByTimeout
+                    + " urgent=" + sBurstsByUrgent + " network active=" + sBurstsByNetwork);
+        }
+        sHoldTime.dump(pw, prefix);
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+/**
+ * A small LRU map with a time to live that survives service restarts. Every update is
+ * written through to a JSON file, so it's only meant for a few dozen entries which are
+ * read and written from background threads.
+ */
+public class PersistentLruCache<V> {
+
+    private static final String TAG = PersistentLruCache.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public interface Codec<V> {
+        JSONObject encode(V value) throws JSONException;
+        V decode(JSONObject json) throws JSONException;
+    }
+
+    public static class Entry<V> {
+        public final V value;
+        /** Wall clock time the value was put into the cache */
+        public final long timestamp;
+
+        Entry(V value, long timestamp) {
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final AtomicFile mFile;
+    private final int mMaxEntries;
+    private final long mMaxAge;
+    private final Codec<V> mCodec;
+
+    private LinkedHashMap<String, Entry<V>> mEntries;
+    private volatile boolean mLoaded;
+    // Bumped on every update. Writes happen outside the cache's lock, so a slow write
+    // doesn't block readers, and mustn't let an older state overwrite a newer one.
+    private long mGeneration;
+    private final Object mWriteLock = new Object();
+    private long mWrittenGeneration;
+    private long mHits;
+    private long mMisses;
+
+    public PersistentLruCache(File file, int maxEntries, long maxAge, Codec<V> codec) {
+        mFile = new AtomicFile(file);
+        mMaxEntries = maxEntries;
+        mMaxAge = maxAge;
+        mCodec = codec;
+    }
+
+    /**
+     * Reads the file now, so later lookups don't have to. Does disk I/O, don't call on
+     * the main thread.
+     */
+    public synchronized void preload() {
+        ensureLoaded();
+    }
+
+    /**
+     * Like getEntry(), but returns null instead of reading the file if it hasn't been
+     * loaded yet. Meant for the main thread: once loaded, the lock is never held
+     * across disk I/O.
+     */
+    public Entry<V> getEntryIfLoaded(String key) {
+        return mLoaded ? getEntry(key) : null;
+    }
+
+    public synchronized V get(String key) {
+        Entry<V> entry = getEntry(key);
+        return entry != null ? entry.value : null;
+    }
+
+    /**
+     * Like get(), but also tells when the value was stored, for callers that apply their
+     * own notion of freshness within the cache's time to live.
+     */
+    public synchronized Entry<V> getEntry(String key) {
+        ensureLoaded();
+        Entry<V> entry = mEntries.get(key);
+        if (entry != null && isExpired(entry, System.currentTimeMillis())) {
+            mEntries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry;
+    }
+
+    /**
+     * Stores the value and writes the cache to disk on the calling thread. The disk I/O
+     * happens after the cache's lock is released, so readers don't wait for it.
+     */
+    public void put(String key, V value) {
+        String data;
+        long generation;
+        synchronized (this) {
+            ensureLoaded();
+            mEntries.put(key, new Entry<>(value, System.currentTimeMillis()));
+            data = encodeLocked();
+            generation = ++mGeneration;
+        }
+        if (data != null) {
+            write(data, generation);
+        }
+    }
+
+    /**
+     * Returns a copy of the live entries, least recently used first. Unlike get() this
+     * neither counts as a lookup nor changes the LRU order.
+     */
+    public synchronized Map<String, Entry<V>> snapshot() {
+        ensureLoaded();
+        long now = System.currentTimeMillis();
+        LinkedHashMap<String, Entry<V>> snapshot = new LinkedHashMap<>();
+        for (Map.Entry<String, Entry<V>> entry : mEntries.entrySet()) {
+            if (!isExpired(entry.getValue(), now)) {
+                snapshot.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return snapshot;
+    }
+
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "Entries: " + (mEntries != null ? mEntries.size() : "not loaded")
+                + "/" + mMaxEntries);
+        long lookups = mHits + mMisses;
+        pw.println(prefix + "Hits: " + mHits + " misses: " + mMisses
+                + (lookups > 0 ? " hit rate: " + (100 * mHits / lookups) + "%" : ""));
+    }
+
+    private boolean isExpired(Entry<V> entry, long now) {
+        long age = now - entry.timestamp;
+        return age < 0 || age > mMaxAge;
+    }
+
+    private void ensureLoaded() {
+        if (mEntries != null) {
+            return;
+        }
+        mEntries = new LinkedHashMap<String, Entry<V>>(mMaxEntries, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+
+        try {
+            String data = new String(mFile.readFully(), StandardCharsets.UTF_8);
+            JSONArray entries = new JSONArray(data);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject item = entries.getJSONObject(i);
+                Entry<V> entry = new Entry<>(mCodec.decode(item.getJSONObject("value")),
+                        item.getLong("timestamp"));
+                if (!isExpired(entry, now)) {
+                    mEntries.put(item.getString("key"), entry);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing persisted yet
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Discarding unreadable cache " + mFile.getBaseFile(), e);
+            mEntries.clear();
+        }
+        mLoaded = true;
+        if (DEBUG) Log.d(TAG, "Loaded " + mEntries.size() + " entries from "
+                + mFile.getBaseFile());
+    }
+
+    private String encodeLocked() {
+        try {
+            // Oldest first, so that reading the file back restores the LRU order
+            JSONArray entries = new JSONArray();
+            for (Map.Entry<String, Entry<V>> entry : mEntries.entrySet()) {
+                JSONObject item = new JSONObject();
+                item.put("key", entry.getKey());
+                item.put("timestamp", entry.getValue().timestamp);
+                item.put("value", mCodec.encode(entry.getValue().value));
+                entries.put(item);
+            }
+            return entries.toString();
+        } catch (JSONException e) {
+            Log.w(TAG, "Could not encode cache " + mFile.getBaseFile(), e);
+            return null;
+        }
+    }
+
+    private void write(String data, long generation) {
+        synchronized (mWriteLock) {
+            if (generation <= mWrittenGeneration) {
+                // A later update has been written already
+                return;
+            }
+            FileOutputStream out = null;
+            try {
+                out = mFile.startWrite();
+                out.write(data.getBytes(StandardCharsets.UTF_8));
+                mFile.finishWrite(out);
+                mWrittenGeneration = generation;
+            } catch (IOException e) {
+                Log.w(TAG, "Could not persist cache " + mFile.getBaseFile(), e);
+                if (out != null) {
+                    mFile.failWrite(out);
+                }
+            }
+        }
+    }
+}
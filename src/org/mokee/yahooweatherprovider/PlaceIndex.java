@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.Log;
+import mokee.weather.WeatherLocation;
+
+/**
+ * On device index of the places the device has resolved before, from city lookups and
+ * geo locations, sorted by language and normalized city name so that completing a
+ * partial name is a range scan. It only knows some of the places of any name, so it
+ * complements lookup results rather than replacing them; complete results of exact
+ * queries are kept by the lookup cache. It is persisted as JSON and bounded to
+ * MAX_ENTRIES places, dropping the oldest ones first.
+ */
+public class PlaceIndex {
+
+    private static final String TAG = PlaceIndex.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final int MAX_ENTRIES = 1000;
+    private static final int MAX_MATCHES = 10;
+    private static final char SEPARATOR = '\u0000';
+
+    private final AtomicFile mFile;
+
+    // language, name and woeid -> place, for lookups
+    private TreeMap<String, WeatherLocation> mIndex;
+    // Same keys in insertion order, for eviction
+    private LinkedHashMap<String, String> mLanguages;
+    private long mLoadTime;
+    private long mHits;
+    private long mMisses;
+
+    public PlaceIndex(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /**
+     * Returns up to MAX_MATCHES known places whose city name starts with the given text,
+     * ignoring case, whitespace and diacritics.
+     */
+    public synchronized List<WeatherLocation> lookup(String language, String text) {
+        ensureLoaded();
+        String name = NameNormalizer.normalize(text);
+        List<WeatherLocation> results = new ArrayList<>();
+        if (name.isEmpty()) {
+            return results;
+        }
+        String prefix = language + SEPARATOR + name;
+        for (WeatherLocation location
+                : mIndex.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+            results.add(location);
+            if (results.size() >= MAX_MATCHES) {
+                break;
+            }
+        }
+        if (results.isEmpty()) {
+            mMisses++;
+        } else {
+            mHits++;
+        }
+        return results;
+    }
+
+    public synchronized void addAll(String language, List<WeatherLocation> locations) {
+        ensureLoaded();
+        for (WeatherLocation location : locations) {
+            String key = language + SEPARATOR + NameNormalizer.normalize(location.getCity())
+                    + SEPARATOR + location.getCityId();
+            // Re-adding a place makes it the newest one
+            mLanguages.remove(key);
+            mLanguages.put(key, language);
+            mIndex.put(key, location);
+        }
+        Iterator<String> oldest = mLanguages.keySet().iterator();
+        while (mIndex.size() > MAX_ENTRIES && oldest.hasNext()) {
+            mIndex.remove(oldest.next());
+            oldest.remove();
+        }
+        write();
+    }
+
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        if (mIndex == null) {
+            pw.println(prefix + "Not loaded");
+            return;
+        }
+        // Rough estimate: key and value strings as UTF-16, plus ~100 bytes of objects
+        long bytes = 0;
+        for (String key : mIndex.keySet()) {
+            WeatherLocation location = mIndex.get(key);
+            bytes += 2 * (key.length() + location.getCityId().length()
+                    + location.getCity().length()) + 100;
+        }
+        pw.println(prefix + "Entries: " + mIndex.size() + "/" + MAX_ENTRIES
+                + " (~" + (bytes / 1024) + "KB) loaded in " + mLoadTime + "ms");
+        pw.println(prefix + "Hits: " + mHits + " misses: " + mMisses);
+    }
+
+    private void ensureLoaded() {
+        if (mIndex != null) {
+            return;
+        }
+        final long start = SystemClock.elapsedRealtime();
+        mIndex = new TreeMap<>();
+        mLanguages = new LinkedHashMap<>();
+        try {
+            String data = new String(mFile.readFully(), StandardCharsets.UTF_8);
+            JSONObject index = new JSONObject(data);
+            JSONArray entries = index.getJSONArray("places");
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject item = entries.getJSONObject(i);
+                String language = item.getString("language");
+                WeatherLocation.Builder builder = new WeatherLocation.Builder(
+                        item.getString("woeid"), item.getString("city"));
+                if (item.has("country")) {
+                    builder.setCountry(item.getString("country"));
+                }
+                if (item.has("countryId")) {
+                    builder.setCountryId(item.getString("countryId"));
+                }
+                WeatherLocation location = builder.build();
+                String key = language + SEPARATOR + NameNormalizer.normalize(location.getCity())
+                        + SEPARATOR + location.getCityId();
+                mIndex.put(key, location);
+                mLanguages.put(key, language);
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing persisted yet
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Discarding unreadable place index " + mFile.getBaseFile(), e);
+            mIndex.clear();
+            mLanguages.clear();
+        }
+        mLoadTime = SystemClock.elapsedRealtime() - start;
+        if (DEBUG) Log.d(TAG, "Loaded " + mIndex.size() + " places in " + mLoadTime + "ms");
+    }
+
+    private void write() {
+        FileOutputStream out = null;
+        try {
+            JSONArray entries = new JSONArray();
+            for (String key : mLanguages.keySet()) {
+                WeatherLocation location = mIndex.get(key);
+                JSONObject item = new JSONObject();
+                item.put("language", mLanguages.get(key));
+                item.put("woeid", location.getCityId());
+                item.put("city", location.getCity());
+                item.put("country", location.getCountry());
+                item.put("countryId", location.getCountryId());
+                entries.put(item);
+            }
+            JSONObject index = new JSONObject();
+            index.put("places", entries);
+            out = mFile.startWrite();
+            out.write(index.toString().getBytes(StandardCharsets.UTF_8));
+            mFile.finishWrite(out);
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Could not persist place index " + mFile.getBaseFile(), e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.IOException;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+import mokee.weather.WeatherLocation;
+
+/**
+ * Decodes geo.places query results token by token. Only the woeid, the country and the
+ * first available locality of each place are kept; everything else is skipped without
+ * being materialized. Places are handed to the listener as soon as they are decoded.
+ */
+public class PlaceJsonParser {
+
+    private static final String TAG = PlaceJsonParser.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final String[] LOCALITY_NAMES = new String[] {
+        "locality1", "locality2", "admin3", "admin2", "admin1"
+    };
+
+    public interface Listener {
+        /**
+         * Called for every usable place, in document order. Returning false stops the
+         * decoding; the rest of the response is not read.
+         */
+        boolean onPlace(WeatherLocation location);
+    }
+
+    private final Listener mListener;
+    private boolean mStopped;
+    private boolean mHasResults;
+
+    public PlaceJsonParser(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Reads a whole YQL response, i.e. {"query": {..., "results": {"place": ...}}}.
+     * Returns false if the response didn't contain any place.
+     */
+    public boolean parse(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext() && !mStopped) {
+            if ("query".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                parseQuery(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        if (!mStopped) {
+            reader.endObject();
+        }
+        return mHasResults;
+    }
+
+    private void parseQuery(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext() && !mStopped) {
+            if ("results".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                parseResults(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        if (!mStopped) {
+            reader.endObject();
+        }
+    }
+
+    /**
+     * Reads the results object of a single geo.places query, {"place": ...}.
+     * Returns false if it didn't contain any place.
+     */
+    public boolean parseResults(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext() && !mStopped) {
+            if (!"place".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            JsonToken token = reader.peek();
+            if (token == JsonToken.BEGIN_ARRAY) {
+                mHasResults = true;
+                reader.beginArray();
+                while (reader.hasNext() && !mStopped) {
+                    handlePlace(reader);
+                }
+                if (!mStopped) {
+                    reader.endArray();
+                }
+            } else if (token == JsonToken.BEGIN_OBJECT) {
+                // Yahoo returns an object instead of an array when there's only one result
+                mHasResults = true;
+                handlePlace(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        if (!mStopped) {
+            reader.endObject();
+        }
+        return mHasResults;
+    }
+
+    private void handlePlace(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return;
+        }
+        WeatherLocation location = parsePlace(reader);
+        if (location != null && !mListener.onPlace(location)) {
+            mStopped = true;
+        }
+    }
+
+    private WeatherLocation parsePlace(JsonReader reader) throws IOException {
+        String resultID = null;
+        String resultCountry = null;
+        String resultCountryId = null;
+        String[][] localities = new String[LOCALITY_NAMES.length][];
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            JsonToken token = reader.peek();
+            if ("woeid".equals(name) && (token == JsonToken.STRING || token == JsonToken.NUMBER)) {
+                resultID = reader.nextString();
+            } else if ("country".equals(name) && token == JsonToken.BEGIN_OBJECT) {
+                String[] country = WeatherJsonParser.readAttributes(reader, "content", "code");
+                resultCountry = country[0];
+                resultCountryId = country[1];
+            } else {
+                int index = indexOfLocality(name);
+                if (index >= 0 && token == JsonToken.BEGIN_OBJECT) {
+                    localities[index] = WeatherJsonParser.readAttributes(reader,
+                            "content", "woeid");
+                } else {
+                    reader.skipValue();
+                }
+            }
+        }
+        reader.endObject();
+
+        String resultCity = null;
+        for (String[] locality : localities) {
+            if (locality != null && locality[0] != null) {
+                resultCity = locality[0];
+                if (locality[1] != null) {
+                    resultID = locality[1];
+                }
+                break;
+            }
+        }
+
+        if (DEBUG) Log.v(TAG, "Place -> id=" + resultID + ", city=" + resultCity
+                + ", country=" + resultCountryId);
+
+        if (resultID == null || resultCity == null || resultCountryId == null) {
+            return null;
+        }
+
+        WeatherLocation.Builder builder = new WeatherLocation.Builder(resultID, resultCity)
+                .setCountryId(resultCountryId);
+        if (resultCountry != null) {
+            builder.setCountry(resultCountry);
+        }
+        return builder.build();
+    }
+
+    private static int indexOfLocality(String name) {
+        for (int i = 0; i < LOCALITY_NAMES.length; i++) {
+            if (LOCALITY_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.util.Log;
+import mokee.weather.WeatherInfo;
+import mokee.weather.WeatherLocation;
+
+/**
+ * Keeps the weather of recently requested saved locations warm. Every location a client
+ * asked for within PREFETCH_MAX_IDLE is refreshed shortly before its stored weather gets
+ * too old to be served right away, all of them in one go so the radio wakes up once.
+ */
+public class PrefetchScheduler {
+
+    private static final String TAG = PrefetchScheduler.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final int JOB_ID = 1;
+
+    // Refresh this long before an entry leaves the stale-while-revalidate window; the
+    // job may run late, JobScheduler batches it with other work needing the network
+    private static final long PREFETCH_LEAD = 1000L * 60L * 15L;
+    // Locations nobody asked for in this long aren't prefetched anymore
+    private static final long PREFETCH_MAX_IDLE = 1000L * 60L * 60L * 6L;
+    // When the job had to skip a run, e.g. in battery saver mode
+    private static final long PREFETCH_RETRY_DELAY = 1000L * 60L * 30L;
+
+    private static PrefetchScheduler sInstance;
+
+    private final Context mContext;
+    private final PersistentLruCache<WeatherInfo> mWeatherStore;
+    // Saved locations by the request key their weather is stored under
+    private final PersistentLruCache<WeatherLocation> mLocations;
+
+    // Wall clock time before which a location whose prefetch failed isn't tried again,
+    // so a woeid that keeps failing doesn't make the job run over and over
+    private final HashMap<String, Long> mRetryAfter = new HashMap<>();
+
+    // Scheduling the job while it runs would stop it; it schedules itself when done
+    private boolean mRunning;
+
+    private long mRuns;
+    private long mDeferred;
+    private long mRefreshed;
+    private long mFailed;
+
+    public static synchronized PrefetchScheduler getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PrefetchScheduler(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PrefetchScheduler(Context context) {
+        mContext = context;
+        mWeatherStore = YahooWeatherProviderService.getWeatherStore(context);
+        mLocations = new PersistentLruCache<>(new File(context.getCacheDir(), "prefetch.json"),
+                YahooWeatherProviderService.WEATHER_STORE_SIZE, PREFETCH_MAX_IDLE,
+                new WeatherLocationCodec());
+    }
+
+    /**
+     * Remembers that the weather of the location was requested. Does disk I/O, don't
+     * call on the main thread.
+     */
+    public void onRequested(String key, WeatherLocation location) {
+        mLocations.put(key, location);
+    }
+
+    /**
+     * Marks the job as running or done. While it runs, schedule() does nothing.
+     */
+    public synchronized void setRunning(boolean running) {
+        mRunning = running;
+    }
+
+    /**
+     * (Re)schedules the prefetch job for the moment the first location needs a refresh,
+     * or cancels it if there is nothing left to keep warm.
+     */
+    public void schedule() {
+        synchronized (this) {
+            if (mRunning) {
+                return;
+            }
+        }
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        Map<String, PersistentLruCache.Entry<WeatherInfo>> stored = mWeatherStore.snapshot();
+        for (String key : mLocations.snapshot().keySet()) {
+            next = Math.min(next, getRefreshTime(key, stored.get(key), now));
+        }
+        if (next == Long.MAX_VALUE) {
+            getJobScheduler().cancel(JOB_ID);
+            return;
+        }
+        scheduleJob(Math.max(0, next - now));
+    }
+
+    /**
+     * Called when the job skipped a run it could have done, tries again later.
+     */
+    public void defer() {
+        synchronized (this) {
+            mDeferred++;
+        }
+        scheduleJob(PREFETCH_RETRY_DELAY);
+    }
+
+    /**
+     * Refreshes every location due within PREFETCH_LEAD, back to back. Returns false if
+     * the run got cancelled. The caller schedules the next run once its job is finished,
+     * scheduling it from within the job would stop the job.
+     */
+    public boolean prefetch(CancellationSignal signal) {
+        synchronized (this) {
+            mRuns++;
+        }
+        long now = System.currentTimeMillis();
+        Map<String, PersistentLruCache.Entry<WeatherInfo>> stored = mWeatherStore.snapshot();
+        List<String> keys = new ArrayList<>();
+        List<WeatherLocation> locations = new ArrayList<>();
+        for (Map.Entry<String, PersistentLruCache.Entry<WeatherLocation>> location
+                : mLocations.snapshot().entrySet()) {
+            if (getRefreshTime(location.getKey(), stored.get(location.getKey()), now) <= now) {
+                keys.add(location.getKey());
+                locations.add(location.getValue().value);
+            }
+        }
+        if (DEBUG) Log.d(TAG, "Prefetching " + keys.size() + " locations");
+
+        for (int start = 0; start < keys.size();
+                start += YahooWeatherProviderService.MAX_BATCH_SIZE) {
+            if (signal.isCanceled()) {
+                return false;
+            }
+            int end = Math.min(keys.size(), start + YahooWeatherProviderService.MAX_BATCH_SIZE);
+            List<String> woeids = new ArrayList<>(end - start);
+            for (int i = start; i < end; i++) {
+                woeids.add(locations.get(i).getCityId());
+            }
+            ForecastResult[] forecasts = YahooWeatherProviderService.fetchForecasts(woeids,
+                    true, signal, false);
+            for (int i = start; i < end; i++) {
+                ForecastResult forecast = forecasts != null ? forecasts[i - start] : null;
+                if (forecast == null) {
+                    if (!signal.isCanceled()) {
+                        synchronized (this) {
+                            mFailed++;
+                            mRetryAfter.put(keys.get(i),
+                                    System.currentTimeMillis() + PREFETCH_RETRY_DELAY);
+                        }
+                    }
+                    continue;
+                }
+                mWeatherStore.put(keys.get(i), YahooWeatherProviderService.buildWeatherInfo(
+                        forecast, locations.get(i).getCity(), true).build());
+                synchronized (this) {
+                    mRefreshed++;
+                    mRetryAfter.remove(keys.get(i));
+                }
+            }
+        }
+        return !signal.isCanceled();
+    }
+
+    /**
+     * Returns when the location is due for a refresh: right away if nothing is stored,
+     * shortly before the stored entry gets too old otherwise, but not before the retry
+     * delay of a failed prefetch has passed.
+     */
+    private synchronized long getRefreshTime(String key,
+            PersistentLruCache.Entry<WeatherInfo> entry, long now) {
+        long refreshTime = entry != null ? entry.timestamp
+                + YahooWeatherProviderService.STALE_WHILE_REVALIDATE_AGE - PREFETCH_LEAD : now;
+        Long retryAfter = mRetryAfter.get(key);
+        return retryAfter != null ? Math.max(refreshTime, retryAfter) : refreshTime;
+    }
+
+    private void scheduleJob(long delay) {
+        JobInfo job = new JobInfo.Builder(JOB_ID,
+                new ComponentName(mContext, WeatherPrefetchService.class))
+                .setMinimumLatency(delay)
+                // Prefetching is nice to have, it's not worth paying for mobile data
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .build();
+        if (DEBUG) Log.d(TAG, "Scheduling prefetch in " + delay + "ms");
+        getJobScheduler().schedule(job);
+    }
+
+    private JobScheduler getJobScheduler() {
+        return (JobScheduler) mContext.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "Locations: " + mLocations.snapshot().size());
+        synchronized (this) {
+            pw.println(prefix + "Runs: " + mRuns + " deferred: " + mDeferred
+                    + " refreshed: " + mRefreshed + " failed: " + mFailed);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+/**
+ * Token buckets per key (e.g. per location) under a global bucket that caps the overall
+ * request rate. Only the most recently used keys are remembered; a forgotten key simply
+ * starts over with a full bucket.
+ */
+public class RateLimiter {
+
+    private static class Bucket {
+        final int capacity;
+        final long refillInterval;
+        double tokens;
+        long lastRefill;
+
+        Bucket(int capacity, long refillInterval, long now) {
+            this.capacity = capacity;
+            this.refillInterval = refillInterval;
+            this.tokens = capacity;
+            this.lastRefill = now;
+        }
+
+        void refill(long now) {
+            tokens = Math.min(capacity, tokens + (double) (now - lastRefill) / refillInterval);
+            lastRefill = now;
+        }
+    }
+
+    private final int mKeyCapacity;
+    private final long mKeyRefillInterval;
+    private final Bucket mGlobalBucket;
+    private final LinkedHashMap<String, Bucket> mBuckets;
+
+    private long mGranted;
+    private long mRejectedByKey;
+    private long mRejectedGlobally;
+
+    /**
+     * @param maxKeys number of keys to keep track of
+     * @param keyCapacity burst size allowed per key
+     * @param keyRefillInterval time for one token to come back to a key's bucket
+     * @param globalCapacity burst size allowed across all keys
+     * @param globalRefillInterval time for one token to come back to the global bucket
+     */
+    public RateLimiter(final int maxKeys, int keyCapacity, long keyRefillInterval,
+            int globalCapacity, long globalRefillInterval) {
+        mKeyCapacity = keyCapacity;
+        mKeyRefillInterval = keyRefillInterval;
+        mGlobalBucket = new Bucket(globalCapacity, globalRefillInterval,
+                SystemClock.elapsedRealtime());
+        mBuckets = new LinkedHashMap<String, Bucket>(maxKeys, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+                return size() > maxKeys;
+            }
+        };
+    }
+
+    public synchronized boolean tryAcquire(String key) {
+        final long now = SystemClock.elapsedRealtime();
+        Bucket bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new Bucket(mKeyCapacity, mKeyRefillInterval, now);
+            mBuckets.put(key, bucket);
+        }
+        bucket.refill(now);
+        mGlobalBucket.refill(now);
+
+        if (bucket.tokens < 1) {
+            mRejectedByKey++;
+            return false;
+        }
+        if (mGlobalBucket.tokens < 1) {
+            mRejectedGlobally++;
+            return false;
+        }
+        bucket.tokens--;
+        mGlobalBucket.tokens--;
+        mGranted++;
+        return true;
+    }
+
+    /**
+     * Gives back the key's token, e.g. because the request it was spent on failed and
+     * should be retried right away. The global budget is not refunded.
+     */
+    public synchronized void release(String key) {
+        Bucket bucket = mBuckets.get(key);
+        if (bucket != null) {
+            bucket.tokens = Math.min(bucket.capacity, bucket.tokens + 1);
+        }
+    }
+
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        mGlobalBucket.refill(SystemClock.elapsedRealtime());
+        pw.println(prefix + "Keys: " + mBuckets.size()
+                + " global tokens: " + String.format("%.2f", mGlobalBucket.tokens));
+        pw.println(prefix + "Granted: " + mGranted + " rejected per key: " + mRejectedByKey
+                + " rejected globally: " + mRejectedGlobally);
+    }
+}
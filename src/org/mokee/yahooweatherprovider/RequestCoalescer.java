@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets identical requests share a single fetch. Keeps the running fetches by key and,
+ * in an InFlightRegistry, the fetch each request is waiting for. A request leaves both
+ * through finish()/complete(), cancel() or abortAll(), whichever comes first.
+ */
+public class RequestCoalescer<R> {
+
+    /**
+     * The requests waiting for one fetch. Once it has been finished or abandoned it
+     * accepts no more waiters, later requests start a new fetch.
+     */
+    public static class Fetch<R> {
+        public final String key;
+        private final ArrayList<R> mWaiters = new ArrayList<>();
+        private boolean mClosed;
+
+        public Fetch(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Called once nobody waits for the result anymore, to stop the work.
+         */
+        protected void onAbandoned() {
+        }
+
+        synchronized boolean addWaiter(R request) {
+            if (mClosed) {
+                return false;
+            }
+            mWaiters.add(request);
+            return true;
+        }
+
+        /**
+         * Returns true if the request was the last waiter, closing the fetch.
+         */
+        synchronized boolean removeWaiter(R request) {
+            if (!mWaiters.remove(request) || !mWaiters.isEmpty()) {
+                return false;
+            }
+            mClosed = true;
+            return true;
+        }
+
+        synchronized ArrayList<R> detachWaiters() {
+            mClosed = true;
+            ArrayList<R> waiters = new ArrayList<>(mWaiters);
+            mWaiters.clear();
+            return waiters;
+        }
+    }
+
+    private final InFlightRegistry<R, Fetch<R>> mInFlight = new InFlightRegistry<>();
+    private final ConcurrentHashMap<String, Fetch<R>> mFetches = new ConcurrentHashMap<>();
+
+    public boolean isRunning(String key) {
+        return mFetches.containsKey(key);
+    }
+
+    /**
+     * Adds the request to the fetch running for the key. Returns false if there is none,
+     * the caller then starts one.
+     */
+    public boolean attach(String key, R request) {
+        Fetch<R> fetch = mFetches.get(key);
+        if (fetch == null) {
+            return false;
+        }
+        // Under the fetch's lock, so that finish() only hands out registered waiters
+        synchronized (fetch) {
+            if (!fetch.addWaiter(request)) {
+                return false;
+            }
+            mInFlight.register(request, fetch);
+        }
+        return true;
+    }
+
+    /**
+     * Makes the fetch the one running for its key. The request may be null for fetches
+     * nobody waits for yet, such as background refreshes.
+     */
+    public void start(Fetch<R> fetch, R request) {
+        if (request != null) {
+            synchronized (fetch) {
+                fetch.addWaiter(request);
+                mInFlight.register(request, fetch);
+            }
+        }
+        mFetches.put(fetch.key, fetch);
+    }
+
+    /**
+     * Withdraws the request from its fetch, abandoning the fetch if it was the last
+     * waiter. Returns false if the request had been answered or cancelled already.
+     */
+    public boolean cancel(R request) {
+        Fetch<R> fetch = mInFlight.remove(request);
+        if (fetch == null) {
+            return false;
+        }
+        if (fetch.removeWaiter(request)) {
+            mFetches.remove(fetch.key, fetch);
+            fetch.onAbandoned();
+        }
+        return true;
+    }
+
+    /**
+     * Retires the fetch and returns its waiters. The caller passes each of them to
+     * complete() before answering it.
+     */
+    public ArrayList<R> finish(Fetch<R> fetch) {
+        ArrayList<R> waiters = fetch.detachWaiters();
+        mFetches.remove(fetch.key, fetch);
+        return waiters;
+    }
+
+    /**
+     * Drops a waiter of a finished fetch. Returns how long it waited, or -1 if it was
+     * cancelled in the meantime and must not be answered.
+     */
+    public long complete(R request) {
+        long age = mInFlight.getAge(request);
+        return mInFlight.remove(request) != null ? age : -1;
+    }
+
+    /**
+     * Abandons all fetches and returns the requests that were still waiting, for the
+     * caller to fail.
+     */
+    public ArrayList<R> abortAll() {
+        ArrayList<R> requests = new ArrayList<>();
+        for (Fetch<R> fetch : mFetches.values()) {
+            mFetches.remove(fetch.key, fetch);
+            fetch.onAbandoned();
+            for (R request : fetch.detachWaiters()) {
+                if (mInFlight.remove(request) != null) {
+                    requests.add(request);
+                }
+            }
+        }
+        return requests;
+    }
+
+    public int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    public int getFetchCount() {
+        return mFetches.size();
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        mInFlight.dump(pw, prefix);
+        pw.println(prefix + "Coalesced fetches: " + getFetchCount());
+    }
+}
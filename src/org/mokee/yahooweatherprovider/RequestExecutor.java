@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * A small thread pool for the provider's network work, used instead of the process wide
+ * serial AsyncTask executor. Work is picked by priority; within a priority either the
+ * oldest or the newest submission runs first, depending on the executor it came through.
+ */
+public class RequestExecutor {
+
+    public static final int PRIORITY_LOOKUP = 0;
+    public static final int PRIORITY_WEATHER = 1;
+
+    private static final long KEEP_ALIVE_SECONDS = 30L;
+
+    private final ThreadPoolExecutor mThreadPool;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final List<PriorityExecutor> mExecutors = new ArrayList<>();
+
+    public RequestExecutor(int threads) {
+        mThreadPool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "YahooWeather #" + mCount.incrementAndGet());
+                    }
+                });
+        mThreadPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns an executor (suitable for AsyncTask.executeOnExecutor()) queueing work at
+     * the given priority. With newestFirst, later submissions overtake earlier ones of
+     * the same priority, which is what we want for interactive lookups.
+     */
+    public synchronized Executor getExecutor(String name, int priority, boolean newestFirst) {
+        PriorityExecutor executor = new PriorityExecutor(name, priority, newestFirst);
+        mExecutors.add(executor);
+        return executor;
+    }
+
+    public void shutdown() {
+        mThreadPool.shutdownNow();
+    }
+
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "Active: " + mThreadPool.getActiveCount()
+                + " queued: " + mThreadPool.getQueue().size()
+                + " completed: " + mThreadPool.getCompletedTaskCount());
+        for (PriorityExecutor executor : mExecutors) {
+            executor.dump(pw, prefix);
+        }
+    }
+
+    private class PriorityExecutor implements Executor {
+        final String mName;
+        final int mPriority;
+        final boolean mNewestFirst;
+        final AtomicInteger mQueued = new AtomicInteger();
+        final AtomicLong mStarted = new AtomicLong();
+        final AtomicLong mTotalWait = new AtomicLong();
+        final AtomicLong mMaxWait = new AtomicLong();
+
+        PriorityExecutor(String name, int priority, boolean newestFirst) {
+            mName = name;
+            mPriority = priority;
+            mNewestFirst = newestFirst;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            mQueued.incrementAndGet();
+            mThreadPool.execute(new PrioritizedRunnable(this, command));
+        }
+
+        void onStarted(long waitTime) {
+            mQueued.decrementAndGet();
+            mStarted.incrementAndGet();
+            mTotalWait.addAndGet(waitTime);
+            long max;
+            do {
+                max = mMaxWait.get();
+            } while (waitTime > max && !mMaxWait.compareAndSet(max, waitTime));
+        }
+
+        void dump(PrintWriter pw, String prefix) {
+            long started = mStarted.get();
+            pw.println(prefix + mName + ": queued=" + mQueued.get()
+                    + " started=" + started
+                    + " avgWait=" + (started > 0 ? mTotalWait.get() / started : 0) + "ms"
+                    + " maxWait=" + mMaxWait.get() + "ms");
+        }
+    }
+
+    private class PrioritizedRunnable implements Runnable, Comparable<PrioritizedRunnable> {
+        final PriorityExecutor mExecutor;
+        final Runnable mRunnable;
+        final long mSequence;
+        final long mEnqueueTime;
+
+        PrioritizedRunnable(PriorityExecutor executor, Runnable runnable) {
+            mExecutor = executor;
+            mRunnable = runnable;
+            mSequence = RequestExecutor.this.mSequence.incrementAndGet();
+            mEnqueueTime = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void run() {
+            mExecutor.onStarted(SystemClock.elapsedRealtime() - mEnqueueTime);
+            mRunnable.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedRunnable other) {
+            if (mExecutor.mPriority != other.mExecutor.mPriority) {
+                return mExecutor.mPriority > other.mExecutor.mPriority ? -1 : 1;
+            }
+            int order = Long.compare(mSequence, other.mSequence);
+            return mExecutor.mNewestFirst ? -order : order;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.IOException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Collects the yweather:* elements of the weather.forecast RSS document.
+ */
+public class WeatherHandler extends DefaultHandler {
+
+    static final String YWEATHER_PREFIX = "yweather:";
+
+    // Looking up the factory goes through the service loader, so do it once. Parsers are
+    // not thread safe, so each thread keeps its own and resets it between documents.
+    private static final SAXParserFactory sParserFactory = SAXParserFactory.newInstance();
+    private static final ThreadLocal<SAXParser> sParser = new ThreadLocal<>();
+
+    private final ForecastResult mResult;
+
+    public WeatherHandler(ForecastResult result) {
+        mResult = result;
+    }
+
+    public void parse(InputSource source)
+            throws IOException, SAXException, ParserConfigurationException {
+        SAXParser parser = sParser.get();
+        if (parser == null) {
+            synchronized (sParserFactory) {
+                parser = sParserFactory.newSAXParser();
+            }
+            sParser.set(parser);
+        } else {
+            parser.reset();
+        }
+        parser.parse(source, this);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes)
+            throws SAXException {
+        // Most of the document is plain RSS and HTML, bail out before comparing names
+        if (!qName.startsWith(YWEATHER_PREFIX)) {
+            return;
+        }
+        switch (qName) {
+            case "yweather:location":
+                mResult.setLocation(attributes.getValue("city"));
+                break;
+            case "yweather:units":
+                mResult.setUnits(attributes.getValue("temperature"), attributes.getValue("speed"));
+                break;
+            case "yweather:wind":
+                mResult.setWind(attributes.getValue("direction"), attributes.getValue("speed"));
+                break;
+            case "yweather:atmosphere":
+                mResult.setAtmosphere(attributes.getValue("humidity"));
+                break;
+            case "yweather:condition":
+                mResult.setCondition(attributes.getValue("code"), attributes.getValue("temp"));
+                break;
+            case "yweather:forecast":
+                mResult.addForecast(attributes.getValue("low"), attributes.getValue("high"));
+                break;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.util.ArrayList;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import mokee.weather.WeatherInfo;
+import mokee.weather.WeatherInfo.DayForecast;
+
+/**
+ * Stores WeatherInfo as JSON. Unknown (NaN) values are left out, as JSON can't represent
+ * them, and are left unset when reading the object back.
+ */
+public class WeatherInfoCodec implements PersistentLruCache.Codec<WeatherInfo> {
+
+    @Override
+    public JSONObject encode(WeatherInfo weatherInfo) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("city", weatherInfo.getCity());
+        json.put("temperature", weatherInfo.getTemperature());
+        json.put("temperatureUnit", weatherInfo.getTemperatureUnit());
+        putDouble(json, "humidity", weatherInfo.getHumidity());
+        putDouble(json, "windSpeed", weatherInfo.getWindSpeed());
+        putDouble(json, "windDirection", weatherInfo.getWindDirection());
+        json.put("windSpeedUnit", weatherInfo.getWindSpeedUnit());
+        putDouble(json, "todaysLow", weatherInfo.getTodaysLow());
+        putDouble(json, "todaysHigh", weatherInfo.getTodaysHigh());
+        json.put("timestamp", weatherInfo.getTimestamp());
+        json.put("conditionCode", weatherInfo.getConditionCode());
+
+        JSONArray forecasts = new JSONArray();
+        for (DayForecast day : weatherInfo.getForecasts()) {
+            JSONObject item = new JSONObject();
+            item.put("conditionCode", day.getConditionCode());
+            putDouble(item, "low", day.getLow());
+            putDouble(item, "high", day.getHigh());
+            forecasts.put(item);
+        }
+        json.put("forecasts", forecasts);
+        return json;
+    }
+
+    @Override
+    public WeatherInfo decode(JSONObject json) throws JSONException {
+        WeatherInfo.Builder builder = new WeatherInfo.Builder(json.getString("city"),
+                json.getDouble("temperature"), json.getInt("temperatureUnit"));
+        if (json.has("humidity")) {
+            builder.setHumidity(json.getDouble("humidity"));
+        }
+        if (json.has("windSpeed") && json.has("windDirection")) {
+            builder.setWind(json.getDouble("windSpeed"), json.getDouble("windDirection"),
+                    json.getInt("windSpeedUnit"));
+        }
+        if (json.has("todaysLow")) {
+            builder.setTodaysLow(json.getDouble("todaysLow"));
+        }
+        if (json.has("todaysHigh")) {
+            builder.setTodaysHigh(json.getDouble("todaysHigh"));
+        }
+        builder.setTimestamp(json.getLong("timestamp"));
+        builder.setWeatherCondition(json.getInt("conditionCode"));
+
+        JSONArray items = json.getJSONArray("forecasts");
+        ArrayList<DayForecast> forecasts = new ArrayList<>(items.length());
+        for (int i = 0; i < items.length(); i++) {
+            JSONObject item = items.getJSONObject(i);
+            DayForecast.Builder day = new DayForecast.Builder(item.getInt("conditionCode"));
+            if (item.has("low")) {
+                day.setLow(item.getDouble("low"));
+            }
+            if (item.has("high")) {
+                day.setHigh(item.getDouble("high"));
+            }
+            forecasts.add(day.build());
+        }
+        builder.setForecast(forecasts);
+        return builder.build();
+    }
+
+    private static void putDouble(JSONObject json, String name, double value)
+            throws JSONException {
+        if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+            json.put(name, value);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+/**
+ * Decodes the format=json flavour of the weather.forecast query token by token, without
+ * building a JSONObject tree, into the same ForecastResult as the XML parsers.
+ */
+public class WeatherJsonParser {
+
+    private final ForecastResult mResult;
+
+    public WeatherJsonParser(ForecastResult result) {
+        mResult = result;
+    }
+
+    /**
+     * Reads a whole YQL response, i.e. {"query": {..., "results": {"channel": {...}}}}.
+     */
+    public void parse(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("query".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                parseQuery(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void parseQuery(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("results".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                parseResults(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Reads the results object of a single forecast query, {"channel": {...}}.
+     */
+    public void parseResults(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("channel".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                parseChannel(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Reads one channel object, the equivalent of the RSS channel element.
+     */
+    public void parseChannel(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "location":
+                    mResult.setLocation(readAttributes(reader, "city")[0]);
+                    break;
+                case "units":
+                    String[] units = readAttributes(reader, "temperature", "speed");
+                    mResult.setUnits(units[0], units[1]);
+                    break;
+                case "wind":
+                    String[] wind = readAttributes(reader, "direction", "speed");
+                    mResult.setWind(wind[0], wind[1]);
+                    break;
+                case "atmosphere":
+                    mResult.setAtmosphere(readAttributes(reader, "humidity")[0]);
+                    break;
+                case "item":
+                    parseItem(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+    }
+
+    private void parseItem(JsonReader reader) throws IOException {
+        String[] condition = null;
+        ArrayList<String[]> forecasts = new ArrayList<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("condition".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                condition = readAttributes(reader, "code", "temp");
+            } else if ("forecast".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        forecasts.add(readAttributes(reader, "low", "high"));
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endArray();
+            } else if ("forecast".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                forecasts.add(readAttributes(reader, "low", "high"));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        // Member order isn't guaranteed in JSON; apply them in document order of the XML
+        // flavour, as the forecast days pick up the current condition code
+        if (condition != null) {
+            mResult.setCondition(condition[0], condition[1]);
+        }
+        for (String[] day : forecasts) {
+            mResult.addForecast(day[0], day[1]);
+        }
+    }
+
+    /**
+     * Reads a flat object and returns the values of the given members (null if missing),
+     * skipping everything else.
+     */
+    static String[] readAttributes(JsonReader reader, String... names)
+            throws IOException {
+        String[] values = new String[names.length];
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            int index = -1;
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(name)) {
+                    index = i;
+                    break;
+                }
+            }
+            JsonToken token = reader.peek();
+            if (index >= 0 && (token == JsonToken.STRING || token == JsonToken.NUMBER)) {
+                values[index] = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return values;
+    }
+}
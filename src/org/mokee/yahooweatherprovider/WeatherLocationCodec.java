@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.util.ArrayList;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import mokee.weather.WeatherLocation;
+
+/**
+ * Stores the members of WeatherLocation this provider fills in as JSON.
+ */
+public class WeatherLocationCodec implements PersistentLruCache.Codec<WeatherLocation> {
+
+    @Override
+    public JSONObject encode(WeatherLocation location) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("woeid", location.getCityId());
+        json.put("city", location.getCity());
+        json.put("country", location.getCountry());
+        json.put("countryId", location.getCountryId());
+        return json;
+    }
+
+    @Override
+    public WeatherLocation decode(JSONObject json) throws JSONException {
+        WeatherLocation.Builder builder = new WeatherLocation.Builder(json.getString("woeid"),
+                json.getString("city"));
+        if (json.has("country")) {
+            builder.setCountry(json.getString("country"));
+        }
+        if (json.has("countryId")) {
+            builder.setCountryId(json.getString("countryId"));
+        }
+        return builder.build();
+    }
+
+    /**
+     * A codec for lists of locations, e.g. the result of a city lookup.
+     */
+    public static class ListCodec implements PersistentLruCache.Codec<ArrayList<WeatherLocation>> {
+        private final WeatherLocationCodec mItemCodec = new WeatherLocationCodec();
+
+        @Override
+        public JSONObject encode(ArrayList<WeatherLocation> locations) throws JSONException {
+            JSONArray items = new JSONArray();
+            for (WeatherLocation location : locations) {
+                items.put(mItemCodec.encode(location));
+            }
+            return new JSONObject().put("locations", items);
+        }
+
+        @Override
+        public ArrayList<WeatherLocation> decode(JSONObject json) throws JSONException {
+            JSONArray items = json.getJSONArray("locations");
+            ArrayList<WeatherLocation> locations = new ArrayList<>(items.length());
+            for (int i = 0; i < items.length(); i++) {
+                locations.add(mItemCodec.decode(items.getJSONObject(i)));
+            }
+            return locations;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Runs the prefetches planned by PrefetchScheduler.
+ */
+public class WeatherPrefetchService extends JobService {
+
+    private static final String TAG = WeatherPrefetchService.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private PrefetchTask mTask;
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        HttpRetriever.installCache(getCacheDir());
+        NetworkDispatcher.install(this);
+        PrefetchScheduler scheduler = PrefetchScheduler.getInstance(this);
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        if (powerManager.isPowerSaveMode()) {
+            if (DEBUG) Log.d(TAG, "Battery saver is on, not prefetching");
+            scheduler.defer();
+            return false;
+        }
+        scheduler.setRunning(true);
+        mTask = new PrefetchTask(scheduler, params);
+        mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        if (mTask != null) {
+            mTask.mCancellationSignal.cancel();
+            mTask.mScheduler.setRunning(false);
+            mTask = null;
+        }
+        // Constraints went away midway, let JobScheduler run us again once they're back
+        return true;
+    }
+
+    private class PrefetchTask extends AsyncTask<Void, Void, Boolean> {
+        final CancellationSignal mCancellationSignal = new CancellationSignal();
+        private final PrefetchScheduler mScheduler;
+        private final JobParameters mParams;
+
+        PrefetchTask(PrefetchScheduler scheduler, JobParameters params) {
+            mScheduler = scheduler;
+            mParams = params;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            return mScheduler.prefetch(mCancellationSignal);
+        }
+
+        @Override
+        protected void onPostExecute(Boolean completed) {
+            if (mTask != this) {
+                // Stopped meanwhile, JobScheduler runs the job again
+                return;
+            }
+            mTask = null;
+            jobFinished(mParams, false);
+            mScheduler.setRunning(false);
+            mScheduler.schedule();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Xml;
+
+/**
+ * Pull based alternative to WeatherHandler. It stops as soon as the current condition
+ * and all the wanted forecast days have been read, leaving the rest of the document
+ * (remaining forecasts, guid, YQL diagnostics) untokenized.
+ */
+public class WeatherPullParser {
+
+    private final ForecastResult mResult;
+
+    public WeatherPullParser(ForecastResult result) {
+        mResult = result;
+    }
+
+    public void parse(InputStream inputStream, String charset)
+            throws IOException, XmlPullParserException {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(inputStream, charset);
+
+        int eventType = parser.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG) {
+                String name = parser.getName();
+                if (name.startsWith(WeatherHandler.YWEATHER_PREFIX)) {
+                    handleElement(parser, name);
+                    if (mResult.isFilled()) {
+                        return;
+                    }
+                }
+            }
+            eventType = parser.next();
+        }
+    }
+
+    private void handleElement(XmlPullParser parser, String name) {
+        switch (name) {
+            case "yweather:location":
+                mResult.setLocation(parser.getAttributeValue(null, "city"));
+                break;
+            case "yweather:units":
+                mResult.setUnits(parser.getAttributeValue(null, "temperature"),
+                        parser.getAttributeValue(null, "speed"));
+                break;
+            case "yweather:wind":
+                mResult.setWind(parser.getAttributeValue(null, "direction"),
+                        parser.getAttributeValue(null, "speed"));
+                break;
+            case "yweather:atmosphere":
+                mResult.setAtmosphere(parser.getAttributeValue(null, "humidity"));
+                break;
+            case "yweather:condition":
+                mResult.setCondition(parser.getAttributeValue(null, "code"),
+                        parser.getAttributeValue(null, "temp"));
+                break;
+            case "yweather:forecast":
+                mResult.addForecast(parser.getAttributeValue(null, "low"),
+                        parser.getAttributeValue(null, "high"));
+                break;
+        }
+    }
+}
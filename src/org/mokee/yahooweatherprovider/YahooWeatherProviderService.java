@@ -16,38 +16,42 @@
 
 package org.mokee.yahooweatherprovider;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
-import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
+import org.xmlpull.v1.XmlPullParserException;
 
 import android.content.Context;
 import android.location.Location;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.text.Html;
 import android.text.TextUtils;
+import android.util.JsonReader;
 import android.util.Log;
 import mokee.providers.WeatherContract;
 import mokee.weather.MKWeatherManager;
 import mokee.weather.RequestInfo;
 import mokee.weather.WeatherInfo;
-import mokee.weather.WeatherInfo.DayForecast;
 import mokee.weather.WeatherLocation;
 import mokee.weatherservice.ServiceRequest;
 import mokee.weatherservice.ServiceRequestResult;
@@ -62,8 +66,21 @@ public class YahooWeatherProviderService extends WeatherProviderService {
 
     private static final int FORECAST_DAYS = 4;
 
+    // Selects the forecast format and parser engine at runtime (sax, pull or json), e.g.
+    // adb shell setprop persist.yahooweather.parser pull
+    private static final String PROP_FORECAST_PARSER = "persist.yahooweather.parser";
+    private static final String PARSER_SAX = "sax";
+    private static final String PARSER_PULL = "pull";
+    private static final String PARSER_JSON = "json";
+
+    // Hedges requests whose headers are slower than usual with a second attempt, e.g.
+    // adb shell setprop persist.yahooweather.hedging true
+    private static final String PROP_HEDGING = "persist.yahooweather.hedging";
+
     private static final String URL_WEATHER =
             "https://query.yahooapis.com/v1/public/yql?format=xml&q=";
+    private static final String URL_WEATHER_JSON =
+            "https://query.yahooapis.com/v1/public/yql?format=json&q=";
     private static final String URL_WEATHER_PARAMS =
             "select * from weather.forecast where woeid = %s and u= '%s'";
 
@@ -79,341 +96,705 @@ public class YahooWeatherProviderService extends WeatherProviderService {
             Uri.encode("select * from geo.places where " +
                     "text =");
 
-    private static final String[] LOCALITY_NAMES = new String[] {
-        "locality1", "locality2", "admin3", "admin2", "admin1"
-    };
-
-    private Map<ServiceRequest,WeatherUpdateRequestTask> mWeatherUpdateRequestMap = new HashMap<>();
-    private Map<ServiceRequest,LookupCityNameRequestTask> mLookupCityRequestMap = new HashMap<>();
+    // Forecasts of saved locations requested within BATCH_WINDOW of each other are
+    // fetched with one yql.query.multi query, one sub-query per woeid, so the results
+    // can be matched back to the requests by position
+    private static final long BATCH_WINDOW = 150L;
+    static final int MAX_BATCH_SIZE = 10;
+    private static final String URL_BATCH_PARAMS =
+            "select * from yql.query.multi where queries=\"%s\"";
+    private static final String URL_BATCH_QUERY =
+            "select * from weather.forecast where woeid = %s and u='%s'";
+    private ForecastBatcher mForecastBatcher;
+
+    // Resolves the place and fetches its forecast in a single yql.query.multi exchange:
+    // the first sub-query returns the place, the second one the forecast for the woeid
+    // of its locality1, selected by a sub-select. That's the woeid PlaceJsonParser picks
+    // (and the place cache keeps) whenever the place has a locality1; without one the
+    // forecast comes back empty and the two step path is used. Can be turned off with
+    // adb shell setprop persist.yahooweather.geo_combined false
+    private static final String PROP_GEO_COMBINED = "persist.yahooweather.geo_combined";
+    private static final String URL_GEO_WEATHER_PARAMS =
+            "select * from yql.query.multi where queries=\"" +
+            "select * from geo.places where text='(%1$f,%2$f)' and lang='%3$s' limit 1;" +
+            "select * from weather.forecast where woeid in " +
+            "(select locality1.woeid from geo.places where text='(%1$f,%2$f)' limit 1) " +
+            "and u='%4$s'\"";
+    private static final int GEO_RESULTS_PLACE = 0;
+    private static final int GEO_RESULTS_FORECAST = 1;
+    private final AtomicLong mCombinedGeoQueries = new AtomicLong();
+    private final AtomicLong mCombinedGeoFallbacks = new AtomicLong();
+
+    // Resolved woeids per geohash cell, so repeated geo location refreshes from the same
+    // area skip the placefinder round trip. A precision of 5 gives ~5km cells, the weather
+    // won't change that much in such short distance.
+    private static final int GEO_CELL_PRECISION = 5;
+    private static final int PLACE_CACHE_SIZE = 64;
+    private static final long PLACE_CACHE_MAX_AGE = 1000L * 60L * 60L * 24L * 7L;
+    private PersistentLruCache<WeatherLocation> mPlaceCache;
+
+    // Complete lookup results by language and normalized query
+    private static final int LOOKUP_CACHE_SIZE = 32;
+    private static final long LOOKUP_CACHE_MAX_AGE = 1000L * 60L * 60L * 24L;
+    private PersistentLruCache<ArrayList<WeatherLocation>> mLookupCache;
+
+    private static final long LOOKUP_SUPERSEDE_WINDOW = 2000L;
+    private static final long LOOKUP_DEBOUNCE_DELAY = 300L;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private LookupCityNameRequestTask mLatestLookup;
+    private long mLatestLookupTime;
+    private long mSupersededLookups;
+
+    // Places resolved before, by lookups or geo locations. Lookups list the ones whose
+    // name starts with the query along with the exact results, or on their own offline.
+    private PlaceIndex mPlaceIndex;
+
+    // Last known weather per request key. Requests are answered from it while the data is
+    // younger than REQUEST_THRESHOLD; up to STALE_WHILE_REVALIDATE_AGE they are answered
+    // from it as well while a background fetch refreshes it. Older data is only used when
+    // a request is throttled or the fetch fails.
+    // The store is shared with the prefetch job, which may run while the service doesn't.
+    static final int WEATHER_STORE_SIZE = 16;
+    private static final long WEATHER_STORE_MAX_AGE = 1000L * 60L * 60L * 24L;
+    static final long STALE_WHILE_REVALIDATE_AGE = 1000L * 60L * 60L;
+    private static PersistentLruCache<WeatherInfo> sWeatherStore;
+    private PersistentLruCache<WeatherInfo> mWeatherStore;
+    private PrefetchScheduler mPrefetchScheduler;
+    private final LatencyStats mStoreLatency = new LatencyStats("Served from store");
+    private final LatencyStats mNetworkLatency = new LatencyStats("Served from network");
+
+    // A ServiceRequest can only be completed once, so lookups can't hand out a partial
+    // list; track how long the first place takes compared to the whole list instead
+    private final LatencyStats mLookupFirstPlaceLatency = new LatencyStats("First place");
+    private final LatencyStats mLookupAllPlacesLatency = new LatencyStats("All places");
+
+    // Weather refreshes go ahead of lookups, newer lookups ahead of older ones
+    private static final int REQUEST_THREADS = 3;
+    private RequestExecutor mRequestExecutor;
+    private Executor mWeatherExecutor;
+    private Executor mLookupExecutor;
+
+    // Identical requests share a single fetch
+    private final RequestCoalescer<ServiceRequest> mCoalescer = new RequestCoalescer<>();
 
     //OpenWeatherMap recommends to wait 10 min between requests
     private final static long REQUEST_THRESHOLD = 1000L * 60L * 10L;
-    private long mLastRequestTimestamp = -REQUEST_THRESHOLD;
-    private WeatherLocation mLastWeatherLocation;
-    private Location mLastLocation;
-    //5km of threshold, the weather won't change that much in such short distance
-    private static final float LOCATION_DISTANCE_METERS_THRESHOLD = 5f * 1000f;
+    // One refresh per location (woeid or geohash cell) every REQUEST_THRESHOLD, and no
+    // more than GLOBAL_REQUEST_BURST refreshes per REQUEST_THRESHOLD overall
+    private static final int THROTTLED_LOCATIONS = 32;
+    private static final int GLOBAL_REQUEST_BURST = 10;
+    private final RateLimiter mRateLimiter = new RateLimiter(THROTTLED_LOCATIONS,
+            1, REQUEST_THRESHOLD, GLOBAL_REQUEST_BURST, REQUEST_THRESHOLD / GLOBAL_REQUEST_BURST);
 
     @Override
     public void onCreate() {
         mContext = getApplicationContext();
+        HttpRetriever.installCache(getCacheDir());
+        HttpRetriever.setHedgingEnabled(SystemProperties.getBoolean(PROP_HEDGING, false));
+        NetworkDispatcher.install(this);
+        mRequestExecutor = new RequestExecutor(REQUEST_THREADS);
+        mWeatherExecutor = mRequestExecutor.getExecutor("Weather",
+                RequestExecutor.PRIORITY_WEATHER, false);
+        mLookupExecutor = mRequestExecutor.getExecutor("Lookup",
+                RequestExecutor.PRIORITY_LOOKUP, true);
+        mPlaceCache = new PersistentLruCache<>(new File(getCacheDir(), "places.json"),
+                PLACE_CACHE_SIZE, PLACE_CACHE_MAX_AGE, new WeatherLocationCodec());
+        mLookupCache = new PersistentLruCache<>(new File(getCacheDir(), "lookups.json"),
+                LOOKUP_CACHE_SIZE, LOOKUP_CACHE_MAX_AGE, new WeatherLocationCodec.ListCodec());
+        mPlaceIndex = new PlaceIndex(new File(getFilesDir(), "place_index.json"));
+        mWeatherStore = getWeatherStore(this);
+        // onRequestSubmitted() runs on the main thread and only looks at the store once
+        // it's loaded, so load it right away
+        mWeatherExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mWeatherStore.preload();
+            }
+        });
+        mPrefetchScheduler = PrefetchScheduler.getInstance(this);
+        mForecastBatcher = new ForecastBatcher(new ForecastBatcher.Fetcher() {
+            @Override
+            public ForecastResult[] fetch(List<String> woeids, boolean urgent) {
+                return fetchForecasts(woeids, true, null, urgent);
+            }
+        }, BATCH_WINDOW, MAX_BATCH_SIZE);
+    }
+
+    static synchronized PersistentLruCache<WeatherInfo> getWeatherStore(Context context) {
+        if (sWeatherStore == null) {
+            sWeatherStore = new PersistentLruCache<>(
+                    new File(context.getCacheDir(), "weather.json"),
+                    WEATHER_STORE_SIZE, WEATHER_STORE_MAX_AGE, new WeatherInfoCodec());
+        }
+        return sWeatherStore;
+    }
+
+    @Override
+    public void onDestroy() {
+        // Debounced lookups would be handed to the executor after it is shut down
+        mHandler.removeCallbacksAndMessages(null);
+        mLatestLookup = null;
+        for (ServiceRequest request : mCoalescer.abortAll()) {
+            request.fail();
+        }
+        mRequestExecutor.shutdown();
+        HttpRetriever.flushCache();
+        super.onDestroy();
     }
 
     @Override
     protected void onRequestSubmitted(ServiceRequest request) {
+        final long submitTime = SystemClock.elapsedRealtime();
         RequestInfo requestInfo = request.getRequestInfo();
         int requestType = requestInfo.getRequestType();
         if (DEBUG) Log.d(TAG, "Received request type " + requestType);
 
-        if (((requestType == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ &&
-                isSameGeoLocation(requestInfo.getLocation(), mLastLocation))
-                    || (requestType == RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ &&
-                        isSameWeatherLocation(requestInfo.getWeatherLocation(),
-                                mLastWeatherLocation))) && requestSubmittedTooSoon()) {
-            request.reject(MKWeatherManager.RequestStatus.SUBMITTED_TOO_SOON);
+        String key = getRequestKey(requestInfo);
+        String throttleKey = getThrottleKey(requestInfo);
+        PersistentLruCache.Entry<WeatherInfo> stored = null;
+        long storedAge = -1;
+        if (requestType == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ
+                || requestType == RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ) {
+            // Until the store is loaded this is a miss, the fetch falls back to it anyway
+            stored = mWeatherStore.getEntryIfLoaded(key);
+            if (stored != null) {
+                storedAge = System.currentTimeMillis() - stored.timestamp;
+            }
+        }
+
+        if (stored != null && storedAge < STALE_WHILE_REVALIDATE_AGE) {
+            // Answer right away, and refresh in the background if the data is getting old
+            completeFromStore(request, stored.value, submitTime);
+            if (storedAge >= REQUEST_THRESHOLD && !mCoalescer.isRunning(key)
+                    && mRateLimiter.tryAcquire(throttleKey)) {
+                if (DEBUG) Log.d(TAG, "Revalidating " + key + " (age " + storedAge + "ms)");
+                startTask(new WeatherUpdateRequestTask(key, requestInfo, false), null,
+                        mWeatherExecutor);
+            }
+            return;
+        }
+
+        if (mCoalescer.attach(key, request)) {
+            if (DEBUG) Log.d(TAG, "Attached request to in-flight fetch " + key);
+            return;
+        }
+
+        if (throttleKey != null && !mRateLimiter.tryAcquire(throttleKey)) {
+            if (DEBUG) Log.d(TAG, "Request for " + throttleKey + " submitted too soon");
+            if (stored != null) {
+                completeFromStore(request, stored.value, submitTime);
+            } else {
+                request.reject(MKWeatherManager.RequestStatus.SUBMITTED_TOO_SOON);
+            }
             return;
         }
 
         switch (requestType) {
             case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
             case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
-                synchronized (mWeatherUpdateRequestMap) {
-                    WeatherUpdateRequestTask weatherTask = new WeatherUpdateRequestTask(request);
-                    mWeatherUpdateRequestMap.put(request, weatherTask);
-                    mLastRequestTimestamp = SystemClock.elapsedRealtime();
-                    weatherTask.execute();
-                }
+                startTask(new WeatherUpdateRequestTask(key, requestInfo, true), request,
+                        mWeatherExecutor);
                 break;
             case RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ:
-                synchronized (mLookupCityRequestMap) {
-                    LookupCityNameRequestTask lookupTask = new LookupCityNameRequestTask(request);
-                    mLookupCityRequestMap.put(request, lookupTask);
-                    lookupTask.execute();
-                }
+                startLookupTask(new LookupCityNameRequestTask(key, requestInfo), request);
                 break;
         }
     }
 
-    private boolean requestSubmittedTooSoon() {
+    private void startLookupTask(final LookupCityNameRequestTask task, ServiceRequest request) {
         final long now = SystemClock.elapsedRealtime();
-        if (DEBUG) Log.d(TAG, "Now " + now + " last request " + mLastRequestTimestamp);
-        return (mLastRequestTimestamp + REQUEST_THRESHOLD > now);
+        // Type-ahead UIs submit a lookup per keystroke. Within a burst, a query extending or
+        // shortening the previous one makes that one obsolete, and new lookups wait a little
+        // in case the next keystroke is on its way. ServiceRequest doesn't tell which
+        // client submitted it, so a burst is recognized by timing and the queries alone.
+        boolean typing = mLatestLookup != null
+                && now - mLatestLookupTime < LOOKUP_SUPERSEDE_WINDOW;
+        if (typing && (task.mQuery.startsWith(mLatestLookup.mQuery)
+                || mLatestLookup.mQuery.startsWith(task.mQuery))) {
+            supersede(mLatestLookup);
+        }
+        mLatestLookup = task;
+        mLatestLookupTime = now;
+        task.mOrigin = request;
+
+        NetworkDispatcher.openBurst();
+        mCoalescer.start(task.mFetch, request);
+        if (!typing) {
+            task.executeOnExecutor(mLookupExecutor);
+            return;
+        }
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (!task.isCancelled()) {
+                    task.executeOnExecutor(mLookupExecutor);
+                }
+            }
+        }, LOOKUP_DEBOUNCE_DELAY);
+    }
+
+    /**
+     * Fails the request that started the lookup. Requests from elsewhere that attached
+     * to the same lookup keep waiting for it; the lookup only stops if there are none.
+     */
+    private void supersede(LookupCityNameRequestTask task) {
+        ServiceRequest origin = task.mOrigin;
+        if (!mCoalescer.cancel(origin)) {
+            // Already answered or cancelled
+            return;
+        }
+        if (DEBUG) Log.d(TAG, "Lookup " + task.mKey + " superseded");
+        mSupersededLookups++;
+        origin.fail();
     }
-    
-    private class WeatherUpdateRequestTask extends AsyncTask<Void, Void, WeatherInfo> {
-        final ServiceRequest mRequest;
-        public WeatherUpdateRequestTask(ServiceRequest request) {
-            mRequest = request;
+
+    private void startTask(ServiceRequestTask<?> task, ServiceRequest request, Executor executor) {
+        if (request != null) {
+            // The radio is about to wake up for this one, let held refreshes ride along
+            // before they take up the worker threads
+            NetworkDispatcher.openBurst();
         }
+        mCoalescer.start(task.mFetch, request);
+        task.executeOnExecutor(executor);
+    }
 
-        public WeatherInfo getWeatherInfo(Location location, boolean metric) {
-            String language = getLanguageCode();
-            String locationParams = String.format(Locale.US, "\"(%f,%f)\" and lang=\"%s\"",
-                    location.getLatitude(), location.getLongitude(), language);
-            String url = URL_PLACEFINDER + Uri.encode(locationParams);
-            JSONObject results = fetchResults(url);
-            if (results == null) {
+    private void completeFromStore(ServiceRequest request, WeatherInfo weatherInfo,
+            long submitTime) {
+        if (DEBUG) Log.d(TAG, "Serving stored weather " + weatherInfo);
+        request.complete(new ServiceRequestResult.Builder(weatherInfo).build());
+        mStoreLatency.record(SystemClock.elapsedRealtime() - submitTime);
+    }
+
+    private String getRequestKey(RequestInfo requestInfo) {
+        // Forecasts are always fetched in celsius, so the unit isn't part of the key
+        switch (requestInfo.getRequestType()) {
+            case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+                WeatherLocation weatherLocation = requestInfo.getWeatherLocation();
+                return "weather/" + weatherLocation.getCityId() + "/" + weatherLocation.getCity();
+            case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
+                Location location = requestInfo.getLocation();
+                return "geo/" + getLanguageCode() + "/" + GeoHash.encode(location.getLatitude(),
+                        location.getLongitude(), GEO_CELL_PRECISION);
+            case RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ:
+                return "lookup/" + getLanguageCode() + "/"
+                        + NameNormalizer.normalize(requestInfo.getCityName());
+            default:
+                return "unknown/" + requestInfo.getRequestType();
+        }
+    }
+
+    private String getThrottleKey(RequestInfo requestInfo) {
+        switch (requestInfo.getRequestType()) {
+            case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+                return "weather/" + requestInfo.getWeatherLocation().getCityId();
+            case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
+                Location location = requestInfo.getLocation();
+                return "geo/" + GeoHash.encode(location.getLatitude(),
+                        location.getLongitude(), GEO_CELL_PRECISION);
+            default:
+                // Lookups are not throttled
                 return null;
+        }
+    }
+
+    /**
+     * A fetch shared by all the requests that submitted the same key while it was running.
+     * The result is delivered to every waiter; the fetch itself is only cancelled once
+     * the last waiter is gone.
+     */
+    private abstract class ServiceRequestTask<Result> extends AsyncTask<Void, Void, Result> {
+        final String mKey;
+        final RequestInfo mRequestInfo;
+        final CancellationSignal mCancellationSignal = new CancellationSignal();
+        // Whether a client is waiting for the result, as opposed to a background refresh
+        // whose network requests can wait for the radio to be active
+        final boolean mUrgent;
+        final RequestCoalescer.Fetch<ServiceRequest> mFetch;
+        // Set by doInBackground() if the result was fetched, as opposed to cached or
+        // stored data; only those count towards the network latency
+        boolean mFromNetwork;
+
+        ServiceRequestTask(String key, RequestInfo requestInfo, boolean urgent) {
+            mKey = key;
+            mRequestInfo = requestInfo;
+            mUrgent = urgent;
+            mFetch = new RequestCoalescer.Fetch<ServiceRequest>(key) {
+                @Override
+                protected void onAbandoned() {
+                    abort();
+                }
+            };
+        }
+
+        /**
+         * Cancels the task, including the network exchange it may be blocked in.
+         * AsyncTask.cancel(true) alone doesn't interrupt HttpURLConnection reads.
+         */
+        void abort() {
+            cancel(true);
+            mCancellationSignal.cancel();
+        }
+
+        protected abstract ServiceRequestResult buildResult(Result result);
+
+        @Override
+        protected void onPostExecute(Result result) {
+            ArrayList<ServiceRequest> waiters = mCoalescer.finish(mFetch);
+
+            ServiceRequestResult requestResult = result != null ? buildResult(result) : null;
+            if (requestResult == null) {
+                if (DEBUG) Log.d(TAG, "Received null result, failing " + waiters.size()
+                        + " request(s) for " + mKey);
+                // Don't hold a failed fetch against the location
+                String throttleKey = getThrottleKey(mRequestInfo);
+                if (throttleKey != null) {
+                    mRateLimiter.release(throttleKey);
+                }
             }
-            try {
-                JSONObject place = results.getJSONObject("place");
-                WeatherLocation result = parsePlace(place);
-                String woeid = null;
-                String city = null;
-                if (result != null) {
-                    woeid = result.getCityId();
-                    city = result.getCity();
+            for (ServiceRequest request : waiters) {
+                long age = mCoalescer.complete(request);
+                if (age < 0) {
+                    // Cancelled while the result was on its way
+                    continue;
+                }
+                if (mFromNetwork && requestResult != null) {
+                    mNetworkLatency.record(age);
                 }
-                // The city name in the placefinder result is HTML encoded :-(
-                if (city != null) {
-                    city = Html.fromHtml(city).toString();
+                if (requestResult != null) {
+                    request.complete(requestResult);
                 } else {
-                    if (DEBUG) Log.w(TAG, "Can not resolve place name for " + location);
+                    request.fail();
                 }
+            }
+        }
+    }
 
-                if (DEBUG) Log.d(TAG, "Resolved location " + location + " to " + city + " (" + woeid + ")");
+    private class WeatherUpdateRequestTask extends ServiceRequestTask<WeatherInfo> {
+        private final ForecastBatcher.Ticket mBatchTicket;
+
+        public WeatherUpdateRequestTask(String key, RequestInfo requestInfo, boolean urgent) {
+            super(key, requestInfo, urgent);
+            // Join the batch right away, it has to know about us before the first of its
+            // members starts fetching
+            mBatchTicket = requestInfo.getRequestType()
+                    == RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ
+                    ? mForecastBatcher.enqueue(requestInfo.getWeatherLocation().getCityId(),
+                            urgent)
+                    : null;
+        }
 
-                // woeid, city, metric
-                WeatherInfo.Builder weatherInfo = getWeatherInfo(woeid, city, true);
-                if (weatherInfo != null) {
-                    return weatherInfo.build();
+        public WeatherInfo getWeatherInfo(Location location, boolean metric) {
+            String language = getLanguageCode();
+            // Place names are localized, so the language is part of the key
+            String cellKey = language + "/" + GeoHash.encode(location.getLatitude(),
+                    location.getLongitude(), GEO_CELL_PRECISION);
+            WeatherLocation place = mPlaceCache.get(cellKey);
+            if (place == null && SystemProperties.getBoolean(PROP_GEO_COMBINED, true)) {
+                WeatherInfo weatherInfo = getWeatherInfoCombined(location, language,
+                        cellKey, metric);
+                if (weatherInfo != null || mCancellationSignal.isCanceled()) {
+                    return weatherInfo;
+                }
+                mCombinedGeoFallbacks.incrementAndGet();
+                if (DEBUG) Log.d(TAG, "Combined query failed, resolving " + location + " first");
+            }
+            if (place == null) {
+                place = resolvePlace(location, language);
+                if (place == null) {
+                    return null;
                 }
-            } catch (JSONException e) {
-                if (DEBUG) Log.e(TAG, "Received malformed placefinder data (location="
-                        + location + ", lang=" + language + ")", e);
+                mPlaceCache.put(cellKey, place);
+                mPlaceIndex.addAll(language, Collections.singletonList(place));
+            }
+
+            String woeid = place.getCityId();
+            String city = place.getCity();
+            if (DEBUG) Log.d(TAG, "Resolved location " + location + " to " + city + " (" + woeid + ")");
+
+            // woeid, city, metric
+            WeatherInfo.Builder weatherInfo = getWeatherInfo(woeid, city, true);
+            if (weatherInfo != null) {
+                return weatherInfo.build();
             }
             return null;
         }
 
-        public WeatherInfo.Builder getWeatherInfo(String id, String localizedCityName, boolean metric) {
-            String url = URL_WEATHER + Uri.encode(String.format(URL_WEATHER_PARAMS, id, metric ? "c" : "f"));
-            String response = HttpRetriever.retrieve(url);
-
-            if (response == null) {
+        private WeatherLocation resolvePlace(Location location, String language) {
+            String locationParams = String.format(Locale.US, "\"(%f,%f)\" and lang=\"%s\"",
+                    location.getLatitude(), location.getLongitude(), language);
+            String url = URL_PLACEFINDER + Uri.encode(locationParams);
+            final WeatherLocation[] result = new WeatherLocation[1];
+            fetchPlaces(url, mCancellationSignal, mUrgent, new PlaceJsonParser.Listener() {
+                @Override
+                public boolean onPlace(WeatherLocation place) {
+                    // The first place is all we need, don't bother reading the rest
+                    result[0] = place;
+                    return false;
+                }
+            });
+            if (result[0] == null) {
+                if (DEBUG) Log.w(TAG, "Can not resolve place name for " + location);
                 return null;
             }
+            return unescapePlace(result[0]);
+        }
 
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            try {
-                SAXParser parser = factory.newSAXParser();
-                StringReader reader = new StringReader(response);
-                WeatherHandler handler = new WeatherHandler();
-                parser.parse(new InputSource(reader), handler);
-
-                if (handler.isComplete()) {
-                    // There are cases where the current condition is unknown, but the forecast
-                    // is not - using the (inaccurate) forecast is probably better than showing
-                    // the question mark
-                    if (handler.conditionCode == 3200) {
-                        handler.conditionCode = handler.forecasts.get(0).getConditionCode();
-                    }
+        private WeatherLocation unescapePlace(WeatherLocation place) {
+            // The city name in the placefinder result is HTML encoded :-(
+            String city = Html.fromHtml(place.getCity()).toString();
+            return new WeatherLocation.Builder(place.getCityId(), city).build();
+        }
 
-                    WeatherInfo.Builder weatherInfo = new WeatherInfo.Builder(
-                            localizedCityName != null ? localizedCityName : handler.city, handler.temperature,
-                                    metric ? WeatherContract.WeatherColumns.TempUnit.CELSIUS : WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT);
-                    weatherInfo.setHumidity(handler.humidity);
-                    weatherInfo.setWind(handler.windSpeed, handler.windDirection, handler.speedUnit.equals("km/h")
-                            ? WeatherContract.WeatherColumns.WindSpeedUnit.KPH : WeatherContract.WeatherColumns.WindSpeedUnit.MPH);
-                    weatherInfo.setTodaysLow(handler.forecasts.get(0).getLow());
-                    weatherInfo.setTodaysHigh(handler.forecasts.get(0).getHigh());
-                    //NOTE: The timestamp provided by YahooWeather corresponds to the time the data
-                    //was last updated by the stations. Let's use System.currentTimeMillis instead
-                    weatherInfo.setTimestamp(System.currentTimeMillis());
-                    weatherInfo.setWeatherCondition(handler.forecasts.get(0).getConditionCode());
-                    weatherInfo.setForecast(handler.forecasts);
-
-                    if (mRequest.getRequestInfo().getRequestType()
-                            == RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ) {
-                        mLastWeatherLocation = mRequest.getRequestInfo().getWeatherLocation();
-                        mLastLocation = null;
-                    } else if (mRequest.getRequestInfo().getRequestType()
-                            == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ) {
-                        mLastLocation = mRequest.getRequestInfo().getLocation();
-                        mLastWeatherLocation = null;
+        /**
+         * Resolves the place and fetches the forecast in one round trip. Returns null if
+         * either part is missing from the response, the caller falls back to the two
+         * step path then.
+         */
+        private WeatherInfo getWeatherInfoCombined(Location location, String language,
+                String cellKey, boolean metric) {
+            String url = URL_WEATHER_JSON + Uri.encode(String.format(Locale.US,
+                    URL_GEO_WEATHER_PARAMS, location.getLatitude(), location.getLongitude(),
+                    language, metric ? "c" : "f"));
+            final WeatherLocation[] place = new WeatherLocation[1];
+            final ForecastResult forecast = new ForecastResult(FORECAST_DAYS);
+            final PlaceJsonParser placeParser = new PlaceJsonParser(
+                    new PlaceJsonParser.Listener() {
+                @Override
+                public boolean onPlace(WeatherLocation result) {
+                    if (place[0] == null) {
+                        place[0] = result;
                     }
-
-                    if (DEBUG) Log.d(TAG, "Weather updated: " + weatherInfo);
-                    return weatherInfo;
-                } else {
-                    if (DEBUG) Log.w(TAG, "Received incomplete weather XML (id=" + id + ")");
+                    // Keep going, the forecast follows the places in the same response
+                    return true;
                 }
-            } catch (ParserConfigurationException e) {
-                if (DEBUG) Log.e(TAG, "Could not create XML parser", e);
-            } catch (SAXException e) {
-                if (DEBUG) Log.e(TAG, "Could not parse weather XML (id=" + id + ")", e);
-            } catch (IOException e) {
-                if (DEBUG) Log.e(TAG, "Could not parse weather XML (id=" + id + ")", e);
+            });
+            final WeatherJsonParser weatherParser = new WeatherJsonParser(forecast);
+            mCombinedGeoQueries.incrementAndGet();
+            Boolean parsed = retrieveJson(url, mCancellationSignal, mUrgent,
+                    new JsonConsumer<Boolean>() {
+                @Override
+                public Boolean consume(JsonReader reader) throws IOException {
+                    new MultiQueryJsonParser(new MultiQueryJsonParser.Handler() {
+                        @Override
+                        public void onResults(int index, JsonReader results)
+                                throws IOException {
+                            if (index == GEO_RESULTS_PLACE) {
+                                placeParser.parseResults(results);
+                            } else if (index == GEO_RESULTS_FORECAST) {
+                                weatherParser.parseResults(results);
+                            } else {
+                                results.skipValue();
+                            }
+                        }
+                    }).parse(reader);
+                    return true;
+                }
+            });
+
+            if (parsed == null || place[0] == null || !forecast.isComplete()) {
+                return null;
             }
-            return null;
+            WeatherLocation resolved = unescapePlace(place[0]);
+            mPlaceCache.put(cellKey, resolved);
+            mPlaceIndex.addAll(language, Collections.singletonList(resolved));
+            WeatherInfo.Builder weatherInfo = buildWeatherInfo(forecast, resolved.getCity(),
+                    metric);
+            if (DEBUG) Log.d(TAG, "Weather updated in one round trip: " + weatherInfo);
+            return weatherInfo.build();
         }
 
-        @Override
-        protected WeatherInfo doInBackground(Void... params) {
-            if (mRequest.getRequestInfo().getRequestType()
-                    == RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ) {
-                return getWeatherInfo(mRequest.getRequestInfo().getWeatherLocation().getCityId(),
-                        mRequest.getRequestInfo().getWeatherLocation().getCity(), true).build();
-            } else if (mRequest.getRequestInfo().getRequestType()
-                    == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ) {
-                return getWeatherInfo(mRequest.getRequestInfo().getLocation(), true);
+        public WeatherInfo.Builder getWeatherInfo(final String id, String localizedCityName, boolean metric) {
+            final String parserType = SystemProperties.get(PROP_FORECAST_PARSER, PARSER_SAX);
+            String url = (PARSER_JSON.equals(parserType) ? URL_WEATHER_JSON : URL_WEATHER)
+                    + Uri.encode(String.format(URL_WEATHER_PARAMS, id, metric ? "c" : "f"));
+            final ForecastResult forecast = new ForecastResult(FORECAST_DAYS);
+            Boolean parsed;
+            if (PARSER_JSON.equals(parserType)) {
+                parsed = retrieveJson(url, mCancellationSignal, mUrgent,
+                        new JsonConsumer<Boolean>() {
+                    @Override
+                    public Boolean consume(JsonReader reader) throws IOException {
+                        new WeatherJsonParser(forecast).parse(reader);
+                        return true;
+                    }
+                });
             } else {
+                parsed = NetworkDispatcher.retrieve(url, new HttpRetriever.ResponseHandler<Boolean>() {
+                    @Override
+                    public Boolean handleResponse(InputStream inputStream, String charset)
+                            throws IOException {
+                        // Feed the socket straight into the parser instead of buffering the document
+                        try {
+                            if (PARSER_PULL.equals(parserType)) {
+                                new WeatherPullParser(forecast).parse(inputStream, charset);
+                            } else {
+                                InputSource source = new InputSource(inputStream);
+                                if (charset != null) {
+                                    source.setEncoding(charset);
+                                }
+                                new WeatherHandler(forecast).parse(source);
+                            }
+                            return true;
+                        } catch (ParserConfigurationException e) {
+                            if (DEBUG) Log.e(TAG, "Could not create XML parser", e);
+                        } catch (SAXException | XmlPullParserException e) {
+                            if (DEBUG) Log.e(TAG, "Could not parse weather XML (id=" + id + ")", e);
+                        }
+                        return false;
+                    }
+                }, mCancellationSignal, mUrgent);
+            }
+
+            if (parsed == null || !parsed) {
                 return null;
             }
-        }
 
-        @Override
-        protected void onPostExecute(WeatherInfo weatherInfo) {
-            if (weatherInfo == null) {
-                if (DEBUG) Log.d(TAG, "Received null weather info, failing request");
-                mRequest.fail();
+            if (forecast.isComplete()) {
+                WeatherInfo.Builder weatherInfo = buildWeatherInfo(forecast, localizedCityName, metric);
+                if (DEBUG) Log.d(TAG, "Weather updated: " + weatherInfo);
+                return weatherInfo;
             } else {
-                if (DEBUG) Log.d(TAG, weatherInfo.toString());
-                ServiceRequestResult result = new ServiceRequestResult.Builder(weatherInfo).build();
-                mRequest.complete(result);
+                if (DEBUG) Log.w(TAG, "Received incomplete weather data (id=" + id + ")");
             }
+            return null;
         }
 
-        private class WeatherHandler extends DefaultHandler {
-            String city;
-            String temperatureUnit, speedUnit;
-            int windDirection, conditionCode;
-            float humidity, temperature, windSpeed;
-            ArrayList<DayForecast> forecasts = new ArrayList<DayForecast>();
-
-            @Override
-            public void startElement(String uri, String localName, String qName, Attributes attributes)
-                    throws SAXException {
-                if (qName.equals("yweather:location")) {
-                    city = attributes.getValue("city");
-                } else if (qName.equals("yweather:units")) {
-                    temperatureUnit = attributes.getValue("temperature");
-                    speedUnit = attributes.getValue("speed");
-                } else if (qName.equals("yweather:wind")) {
-                    windDirection = (int) stringToFloat(attributes.getValue("direction"), -1);
-                    windSpeed = stringToFloat(attributes.getValue("speed"), -1);
-                } else if (qName.equals("yweather:atmosphere")) {
-                    humidity = stringToFloat(attributes.getValue("humidity"), -1);
-                } else if (qName.equals("yweather:condition")) {
-                    conditionCode = (int) stringToFloat(attributes.getValue("code"), -1);
-                    temperature = stringToFloat(attributes.getValue("temp"), Float.NaN);
-                } else if (qName.equals("yweather:forecast")) {
-                    DayForecast day = new DayForecast.Builder(conditionCode)
-                        .setLow(stringToDouble(attributes.getValue("low"), Double.NaN))
-                        .setHigh(stringToDouble(attributes.getValue("high"), Double.NaN)).build();
-                    if (!Double.isNaN(day.getLow()) && !Double.isNaN(day.getHigh()) && day.getConditionCode() >= 0) {
-                        if (forecasts.size() < FORECAST_DAYS) {
-                            forecasts.add(day);
-                        }
-                    }
-                }
+        @Override
+        protected WeatherInfo doInBackground(Void... params) {
+            if (mRequestInfo.getRequestType()
+                    == RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ) {
+                // Somebody still cares about this location, keep it warm from now on
+                mPrefetchScheduler.onRequested(mKey, mRequestInfo.getWeatherLocation());
             }
-
-            public boolean isComplete() {
-                return temperatureUnit != null && speedUnit != null && conditionCode >= 0
-                        && !Float.isNaN(temperature) && !forecasts.isEmpty();
+            WeatherInfo weatherInfo = fetchWeatherInfo();
+            if (weatherInfo != null) {
+                mFromNetwork = true;
+                mWeatherStore.put(mKey, weatherInfo);
+                mPrefetchScheduler.schedule();
+                return weatherInfo;
             }
 
-            private float stringToFloat(String value, float defaultValue) {
-                try {
-                    if (value != null) {
-                        return Float.parseFloat(value);
-                    }
-                } catch (NumberFormatException e) {
-                    // fall through to the return line below
+            // Offline or Yahoo is having trouble, the last known data beats nothing
+            PersistentLruCache.Entry<WeatherInfo> stored = mWeatherStore.getEntry(mKey);
+            if (stored != null) {
+                if (DEBUG) Log.d(TAG, "Fetch failed, falling back to stored weather for " + mKey);
+                String throttleKey = getThrottleKey(mRequestInfo);
+                if (throttleKey != null) {
+                    mRateLimiter.release(throttleKey);
                 }
-                return defaultValue;
+                return stored.value;
             }
+            return null;
+        }
 
-            private Double stringToDouble(String value, Double defaultValue) {
-                try {
-                    if (value != null) {
-                        return Double.parseDouble(value);
-                    }
-                } catch (NumberFormatException e) {
-                    // fall through to the return line below
+        private WeatherInfo fetchWeatherInfo() {
+            if (mRequestInfo.getRequestType()
+                    == RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ) {
+                ForecastResult forecast = mForecastBatcher.await(mBatchTicket);
+                if (forecast != null) {
+                    return buildWeatherInfo(forecast,
+                            mRequestInfo.getWeatherLocation().getCity(), true).build();
                 }
-                return defaultValue;
+                WeatherInfo.Builder weatherInfo = getWeatherInfo(
+                        mRequestInfo.getWeatherLocation().getCityId(),
+                        mRequestInfo.getWeatherLocation().getCity(), true);
+                return weatherInfo != null ? weatherInfo.build() : null;
+            } else if (mRequestInfo.getRequestType()
+                    == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ) {
+                return getWeatherInfo(mRequestInfo.getLocation(), true);
+            } else {
+                return null;
             }
         }
 
-    }
-
-    private boolean isSameWeatherLocation(WeatherLocation newLocation,
-            WeatherLocation oldLocation) {
-        if (newLocation == null || oldLocation == null) return false;
-        return (newLocation.getCityId().equals(oldLocation.getCityId())
-                && newLocation.getCity().equals(oldLocation.getCity())
-                && newLocation.getPostalCode().equals(oldLocation.getPostalCode())
-                && newLocation.getCountry().equals(oldLocation.getCountry())
-                && newLocation.getCountryId().equals(oldLocation.getCountryId()));
-    }
-
-    private boolean isSameGeoLocation(Location newLocation, Location oldLocation) {
-        if (newLocation == null || oldLocation == null) return false;
-        float distance = newLocation.distanceTo(oldLocation);
-        if (DEBUG) Log.d(TAG, "Distance between locations " + distance);
-        return (distance < LOCATION_DISTANCE_METERS_THRESHOLD);
+        @Override
+        protected ServiceRequestResult buildResult(WeatherInfo weatherInfo) {
+            if (DEBUG) Log.d(TAG, weatherInfo.toString());
+            return new ServiceRequestResult.Builder(weatherInfo).build();
+        }
     }
 
     private class LookupCityNameRequestTask
-            extends AsyncTask<Void, Void, ArrayList<WeatherLocation>> {
-
-        final ServiceRequest mRequest;
-        public LookupCityNameRequestTask(ServiceRequest request) {
-            mRequest = request;
+            extends ServiceRequestTask<ArrayList<WeatherLocation>> {
+        final String mQuery;
+        // The request the lookup was started for, the only one a newer keystroke
+        // supersedes. Only touched on the main thread.
+        ServiceRequest mOrigin;
+
+        public LookupCityNameRequestTask(String key, RequestInfo requestInfo) {
+            super(key, requestInfo, true);
+            mQuery = NameNormalizer.normalize(requestInfo.getCityName());
         }
 
         @Override
         protected ArrayList<WeatherLocation> doInBackground(Void... params) {
-            ArrayList<WeatherLocation> locations = getLocations(
-                    mRequest.getRequestInfo().getCityName());
-            return locations;
+            String cityName = mRequestInfo.getCityName();
+            String language = getLanguageCode();
+            // The task key already is the language and normalized query
+            ArrayList<WeatherLocation> locations = mLookupCache.get(mKey);
+            if (locations != null) {
+                if (DEBUG) Log.d(TAG, "Answering lookup for " + cityName + " from cache");
+            } else {
+                locations = getLocations(cityName);
+                if (locations != null) {
+                    mPlaceIndex.addAll(language, locations);
+                    mLookupCache.put(mKey, locations);
+                }
+            }
+
+            // Known places completing the query, e.g. Beijing for "bei", come after the
+            // exact results or stand in for them when offline
+            List<WeatherLocation> knownPlaces = mPlaceIndex.lookup(language, cityName);
+            if (locations == null) {
+                return knownPlaces.isEmpty() ? null : new ArrayList<>(knownPlaces);
+            }
+            ArrayList<WeatherLocation> results = new ArrayList<>(locations);
+            for (WeatherLocation place : knownPlaces) {
+                if (!containsCityId(results, place.getCityId())) {
+                    results.add(place);
+                }
+            }
+            return results;
+        }
+
+        private boolean containsCityId(List<WeatherLocation> locations, String cityId) {
+            for (WeatherLocation location : locations) {
+                if (location.getCityId().equals(cityId)) {
+                    return true;
+                }
+            }
+            return false;
         }
 
         @Override
-        protected void onPostExecute(ArrayList<WeatherLocation> locations) {
-            if (locations != null) {
-                if (DEBUG) {
-                    for (WeatherLocation location : locations) {
-                        Log.d(TAG, location.toString());
-                    }
+        protected ServiceRequestResult buildResult(ArrayList<WeatherLocation> locations) {
+            if (DEBUG) {
+                for (WeatherLocation location : locations) {
+                    Log.d(TAG, location.toString());
                 }
-                ServiceRequestResult request = new ServiceRequestResult.Builder(locations).build();
-                mRequest.complete(request);
-            } else {
-                mRequest.fail();
             }
+            return new ServiceRequestResult.Builder(locations).build();
         }
 
         private ArrayList<WeatherLocation> getLocations(String input) {
             String language = getLanguageCode();
             String params = "\"" + input + "\" and lang = \"" + language + "\"";
             String url = URL_LOCATION + Uri.encode(params);
-            JSONObject jsonResults = fetchResults(url);
-            if (jsonResults == null) {
-                return null;
-            }
-
-            try {
-                JSONArray places = jsonResults.optJSONArray("place");
-                if (places == null) {
-                    // Yahoo returns an object instead of an array when there's only one result
-                    places = new JSONArray();
-                    places.put(jsonResults.getJSONObject("place"));
-                }
-
-                ArrayList<WeatherLocation> results = new ArrayList<>();
-                for (int i = 0; i < places.length(); i++) {
-                    WeatherLocation weatherLocation = parsePlace(places.getJSONObject(i));
-                    if (weatherLocation != null) {
-                        results.add(weatherLocation);
+            final long startTime = SystemClock.elapsedRealtime();
+            final ArrayList<WeatherLocation> results = new ArrayList<>();
+            boolean hasResults = fetchPlaces(url, mCancellationSignal, mUrgent,
+                    new PlaceJsonParser.Listener() {
+                @Override
+                public boolean onPlace(WeatherLocation location) {
+                    if (results.isEmpty()) {
+                        mLookupFirstPlaceLatency.record(SystemClock.elapsedRealtime() - startTime);
                     }
+                    results.add(location);
+                    return true;
                 }
-                return results;
-            } catch (JSONException e) {
-                if (DEBUG) Log.w(TAG, "JSONException while processing location lookup", e);
-            }
-            return null;
+            });
+            mLookupAllPlacesLatency.record(SystemClock.elapsedRealtime() - startTime);
+            return hasResults ? results : null;
         }
     }
 
@@ -422,20 +803,9 @@ public class YahooWeatherProviderService extends WeatherProviderService {
         switch (request.getRequestInfo().getRequestType()) {
             case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
             case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
-                synchronized (mWeatherUpdateRequestMap) {
-                    WeatherUpdateRequestTask task = mWeatherUpdateRequestMap.remove(request);
-                    if (task != null) {
-                        task.cancel(true);
-                    }
-                    return;
-                }
             case RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ:
-                synchronized (mLookupCityRequestMap) {
-                    LookupCityNameRequestTask task = mLookupCityRequestMap.remove(request);
-                    if (task != null) {
-                        task.cancel(true);
-                    }
-                }
+                // Other requests may still be waiting for the same fetch
+                mCoalescer.cancel(request);
                 return;
             default:
                 Log.w(TAG, "Received unknown request type "
@@ -444,52 +814,153 @@ public class YahooWeatherProviderService extends WeatherProviderService {
         }
     }
 
-    private WeatherLocation parsePlace(JSONObject place) throws JSONException {
-        JSONObject country = place.getJSONObject("country");
+    static WeatherInfo.Builder buildWeatherInfo(ForecastResult forecast,
+            String localizedCityName, boolean metric) {
+        // There are cases where the current condition is unknown, but the forecast
+        // is not - using the (inaccurate) forecast is probably better than showing
+        // the question mark
+        if (forecast.conditionCode == 3200) {
+            forecast.conditionCode = forecast.forecasts.get(0).getConditionCode();
+        }
 
-        String resultID = place.getString("woeid");
-        String resultCountry = country.getString("content");
-        String resultCountryId = country.getString("code");
-        String resultCity = null;
+        WeatherInfo.Builder weatherInfo = new WeatherInfo.Builder(
+                localizedCityName != null ? localizedCityName : forecast.city, forecast.temperature,
+                        metric ? WeatherContract.WeatherColumns.TempUnit.CELSIUS : WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT);
+        weatherInfo.setHumidity(forecast.humidity);
+        weatherInfo.setWind(forecast.windSpeed, forecast.windDirection, forecast.speedUnit.equals("km/h")
+                ? WeatherContract.WeatherColumns.WindSpeedUnit.KPH : WeatherContract.WeatherColumns.WindSpeedUnit.MPH);
+        weatherInfo.setTodaysLow(forecast.forecasts.get(0).getLow());
+        weatherInfo.setTodaysHigh(forecast.forecasts.get(0).getHigh());
+        //NOTE: The timestamp provided by YahooWeather corresponds to the time the data
+        //was last updated by the stations. Let's use System.currentTimeMillis instead
+        weatherInfo.setTimestamp(System.currentTimeMillis());
+        weatherInfo.setWeatherCondition(forecast.forecasts.get(0).getConditionCode());
+        weatherInfo.setForecast(forecast.forecasts);
+        return weatherInfo;
+    }
 
-        for (String name : LOCALITY_NAMES) {
-            if (!place.isNull(name)) {
-                JSONObject localeObject = place.getJSONObject(name);
-                resultCity = localeObject.getString("content");
-                if (localeObject.optString("woeid") != null) {
-                    resultID = localeObject.getString("woeid");
-                }
-                break;
+    /**
+     * Fetches the forecasts of several woeids in one exchange. Returns the forecasts in
+     * the order of the woeids, null for the ones missing or incomplete in the response,
+     * or null if the request failed altogether.
+     */
+    static ForecastResult[] fetchForecasts(List<String> woeids, boolean metric,
+            CancellationSignal signal, boolean urgent) {
+        StringBuilder queries = new StringBuilder();
+        for (String woeid : woeids) {
+            if (queries.length() > 0) {
+                queries.append(';');
             }
+            queries.append(String.format(URL_BATCH_QUERY, woeid, metric ? "c" : "f"));
         }
-
-        if (DEBUG) Log.v(TAG, "JSON data " + place.toString() + " -> id=" + resultID
-                    + ", city=" + resultCity + ", country=" + resultCountryId);
-
-        if (resultID == null || resultCity == null || resultCountryId == null) {
+        String url = URL_WEATHER_JSON
+                + Uri.encode(String.format(URL_BATCH_PARAMS, queries));
+        final ForecastResult[] forecasts = new ForecastResult[woeids.size()];
+        for (int i = 0; i < forecasts.length; i++) {
+            forecasts[i] = new ForecastResult(FORECAST_DAYS);
+        }
+        Boolean parsed = retrieveJson(url, signal, urgent, new JsonConsumer<Boolean>() {
+            @Override
+            public Boolean consume(JsonReader reader) throws IOException {
+                new MultiQueryJsonParser(new MultiQueryJsonParser.Handler() {
+                    @Override
+                    public void onResults(int index, JsonReader results) throws IOException {
+                        if (index < forecasts.length) {
+                            new WeatherJsonParser(forecasts[index]).parseResults(results);
+                        } else {
+                            results.skipValue();
+                        }
+                    }
+                }).parse(reader);
+                return true;
+            }
+        });
+        if (parsed == null) {
             return null;
         }
-
-        return new WeatherLocation.Builder(resultID, resultCity)
-                .setCountry(resultCountry).setCountryId(resultCountryId).build();
+        for (int i = 0; i < forecasts.length; i++) {
+            if (!forecasts[i].isComplete()) {
+                if (DEBUG) Log.w(TAG, "Batch lacks weather data (id=" + woeids.get(i) + ")");
+                forecasts[i] = null;
+            }
+        }
+        return forecasts;
     }
 
-    private JSONObject fetchResults(String url) {
-        String response = HttpRetriever.retrieve(url);
-        if (response == null) {
-            return null;
-        }
+    /**
+     * Streams a geo.places query into the listener. Returns false if the request failed
+     * or the response didn't contain any place.
+     */
+    private boolean fetchPlaces(String url, CancellationSignal signal, boolean urgent,
+            final PlaceJsonParser.Listener listener) {
+        Boolean hasResults = retrieveJson(url, signal, urgent, new JsonConsumer<Boolean>() {
+            @Override
+            public Boolean consume(JsonReader reader) throws IOException {
+                return new PlaceJsonParser(listener).parse(reader);
+            }
+        });
+        return hasResults != null && hasResults;
+    }
 
-        if (DEBUG) Log.v(TAG, "Request URL is " + url + ", response is " + response);
+    private interface JsonConsumer<T> {
+        T consume(JsonReader reader) throws IOException;
+    }
 
-        try {
-            JSONObject rootObject = new JSONObject(response);
-            return rootObject.getJSONObject("query").getJSONObject("results");
-        } catch (JSONException e) {
-            if (DEBUG) Log.w(TAG, "Received malformed places data (url=" + url + ")", e);
-        }
+    /**
+     * Streams a YQL JSON response into the consumer. Returns null if the request failed
+     * or the response was malformed.
+     */
+    private static <T> T retrieveJson(final String url, CancellationSignal signal,
+            boolean urgent, final JsonConsumer<T> consumer) {
+        return NetworkDispatcher.retrieve(url, new HttpRetriever.ResponseHandler<T>() {
+            @Override
+            public T handleResponse(InputStream inputStream, String charset)
+                    throws IOException {
+                JsonReader reader = new JsonReader(new InputStreamReader(inputStream,
+                        HttpRetriever.toCharset(charset)));
+                try {
+                    return consumer.consume(reader);
+                } catch (IllegalStateException e) {
+                    // JsonReader reports unexpected tokens this way
+                    if (DEBUG) Log.w(TAG, "Received malformed data (url=" + url + ")", e);
+                    return null;
+                }
+            }
+        }, signal, urgent);
+    }
 
-        return null;
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("HttpRetriever:");
+        HttpRetriever.dump(pw, "  ");
+        pw.println("Network dispatcher:");
+        NetworkDispatcher.dump(pw, "  ");
+        pw.println("Rate limiter:");
+        mRateLimiter.dump(pw, "  ");
+        pw.println("Request executor:");
+        mRequestExecutor.dump(pw, "  ");
+        pw.println("Requests:");
+        mCoalescer.dump(pw, "  ");
+        pw.println("  Combined geo queries: " + mCombinedGeoQueries.get()
+                + " fallbacks: " + mCombinedGeoFallbacks.get());
+        pw.println("Forecast batches:");
+        mForecastBatcher.dump(pw, "  ");
+        pw.println("Place cache:");
+        mPlaceCache.dump(pw, "  ");
+        pw.println("Lookup cache:");
+        mLookupCache.dump(pw, "  ");
+        pw.println("Place index:");
+        mPlaceIndex.dump(pw, "  ");
+        pw.println("Weather store:");
+        mWeatherStore.dump(pw, "  ");
+        mStoreLatency.dump(pw, "  ");
+        mNetworkLatency.dump(pw, "  ");
+        pw.println("Prefetch:");
+        mPrefetchScheduler.dump(pw, "  ");
+        pw.println("Lookups:");
+        pw.println("  Superseded: " + mSupersededLookups);
+        mLookupFirstPlaceLatency.dump(pw, "  ");
+        mLookupAllPlacesLatency.dump(pw, "  ");
     }
 
     private String getLanguageCode() {
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.Context;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Measures the average time and allocations of a piece of code over many runs, after
+ * some warm-up runs. Time and allocations are taken in separate rounds, as counting
+ * allocations slows the code down. Results are logged under the Benchmark tag, e.g.
+ * adb logcat -s Benchmark
+ */
+class Benchmark {
+
+    private static final String TAG = "Benchmark";
+
+    private static final int WARMUP_RUNS = 50;
+    private static final int RUNS = 500;
+
+    interface Body {
+        void run() throws Exception;
+    }
+
+    final String name;
+    final long nanosPerRun;
+    final long allocationsPerRun;
+    final long bytesAllocatedPerRun;
+
+    private Benchmark(String name, long nanosPerRun, long allocationsPerRun,
+            long bytesAllocatedPerRun) {
+        this.name = name;
+        this.nanosPerRun = nanosPerRun;
+        this.allocationsPerRun = allocationsPerRun;
+        this.bytesAllocatedPerRun = bytesAllocatedPerRun;
+    }
+
+    @SuppressWarnings("deprecation")
+    static Benchmark run(String name, Body body) throws Exception {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            body.run();
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < RUNS; i++) {
+            body.run();
+        }
+        long nanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        try {
+            for (int i = 0; i < RUNS; i++) {
+                body.run();
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        Benchmark result = new Benchmark(name, nanos / RUNS,
+                Debug.getThreadAllocCount() / RUNS, Debug.getThreadAllocSize() / RUNS);
+        Log.i(TAG, result.toString());
+        return result;
+    }
+
+    /**
+     * Reads a whole asset of the test package, e.g. "forecast/beijing.xml".
+     */
+    static byte[] readAsset(Context context, String path) throws IOException {
+        InputStream in = context.getAssets().open(path);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + (nanosPerRun / 1000) + "us, " + allocationsPerRun
+                + " allocations (" + bytesAllocatedPerRun + " bytes) per run";
+    }
+}
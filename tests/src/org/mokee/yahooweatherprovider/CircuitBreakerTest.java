@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import android.os.SystemClock;
+import junit.framework.TestCase;
+
+public class CircuitBreakerTest extends TestCase {
+
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long OPEN_INTERVAL = 200L;
+    private static final long MAX_OPEN_INTERVAL = 1000L;
+
+    private CircuitBreaker mBreaker;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBreaker = new CircuitBreaker(FAILURE_THRESHOLD, OPEN_INTERVAL, MAX_OPEN_INTERVAL);
+    }
+
+    public void testOpensAfterConsecutiveFailures() {
+        failRequests(FAILURE_THRESHOLD - 1);
+        assertEquals(CircuitBreaker.STATE_CLOSED, mBreaker.getState());
+
+        failRequests(1);
+        assertEquals(CircuitBreaker.STATE_OPEN, mBreaker.getState());
+        assertFalse(mBreaker.allowRequest());
+    }
+
+    public void testSuccessResetsFailures() {
+        failRequests(FAILURE_THRESHOLD - 1);
+        assertTrue(mBreaker.allowRequest());
+        mBreaker.onSuccess();
+        failRequests(FAILURE_THRESHOLD - 1);
+
+        assertEquals(CircuitBreaker.STATE_CLOSED, mBreaker.getState());
+    }
+
+    public void testSingleProbeWhileHalfOpen() {
+        failRequests(FAILURE_THRESHOLD);
+        SystemClock.sleep(OPEN_INTERVAL + OPEN_INTERVAL / 4);
+
+        assertTrue(mBreaker.allowRequest());
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, mBreaker.getState());
+        assertFalse(mBreaker.allowRequest());
+
+        mBreaker.onSuccess();
+        assertEquals(CircuitBreaker.STATE_CLOSED, mBreaker.getState());
+        assertTrue(mBreaker.allowRequest());
+    }
+
+    public void testFailedProbeDoublesOpenInterval() {
+        failRequests(FAILURE_THRESHOLD);
+        SystemClock.sleep(OPEN_INTERVAL + OPEN_INTERVAL / 4);
+        assertTrue(mBreaker.allowRequest());
+        mBreaker.onFailure();
+        assertEquals(CircuitBreaker.STATE_OPEN, mBreaker.getState());
+
+        // Past the first interval, but not the doubled one
+        SystemClock.sleep(OPEN_INTERVAL + OPEN_INTERVAL / 4);
+        assertFalse(mBreaker.allowRequest());
+
+        SystemClock.sleep(OPEN_INTERVAL);
+        assertTrue(mBreaker.allowRequest());
+    }
+
+    public void testCancelledProbeIsHandedOn() {
+        failRequests(FAILURE_THRESHOLD);
+        SystemClock.sleep(OPEN_INTERVAL + OPEN_INTERVAL / 4);
+        assertTrue(mBreaker.allowRequest());
+
+        mBreaker.onCancelled();
+        assertEquals(CircuitBreaker.STATE_OPEN, mBreaker.getState());
+        // The next caller probes right away instead of waiting out another interval
+        assertTrue(mBreaker.allowRequest());
+        assertEquals(CircuitBreaker.STATE_HALF_OPEN, mBreaker.getState());
+    }
+
+    public void testCancelWhileClosedIsNoFailure() {
+        failRequests(FAILURE_THRESHOLD - 1);
+        assertTrue(mBreaker.allowRequest());
+        mBreaker.onCancelled();
+
+        assertEquals(CircuitBreaker.STATE_CLOSED, mBreaker.getState());
+    }
+
+    private void failRequests(int failures) {
+        for (int i = 0; i < failures; i++) {
+            assertTrue(mBreaker.allowRequest());
+            mBreaker.onFailure();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.InputSource;
+
+import android.test.InstrumentationTestCase;
+import android.util.JsonReader;
+import android.util.Log;
+
+/**
+ * Compares the forecast parser engines on the recorded responses in assets/forecast.
+ * Results are logged, see Benchmark.
+ */
+public class ForecastParserBenchmark extends InstrumentationTestCase {
+
+    private static final String TAG = "Benchmark";
+
+    private static final String[] FIXTURES = new String[] {
+        "beijing", "sunnyvale", "reykjavik"
+    };
+    private static final int FORECAST_DAYS = 4;
+
+    public void testPullParserAgainstSax() throws Exception {
+        for (String name : FIXTURES) {
+            final byte[] xml = readAsset(name + ".xml");
+            Benchmark.run(name + " sax", new Benchmark.Body() {
+                @Override
+                public void run() throws Exception {
+                    parseSax(new ByteArrayInputStream(xml));
+                }
+            });
+            Benchmark.run(name + " pull", new Benchmark.Body() {
+                @Override
+                public void run() throws Exception {
+                    parsePull(new ByteArrayInputStream(xml));
+                }
+            });
+
+            // The pull parser stops once it has what it needs, SAX always reads it all
+            CountingInputStream saxStream = new CountingInputStream(xml);
+            parseSax(saxStream);
+            CountingInputStream pullStream = new CountingInputStream(xml);
+            parsePull(pullStream);
+            Log.i(TAG, name + " bytes read: sax=" + saxStream.mCount
+                    + " pull=" + pullStream.mCount + " of " + xml.length);
+            assertTrue(name, pullStream.mCount <= saxStream.mCount);
+        }
+    }
+
+    public void testSaxParserReuse() throws Exception {
+        for (String name : FIXTURES) {
+            final byte[] xml = readAsset(name + ".xml");
+            // What each refresh used to do: look up the factory and build a new parser
+            Benchmark fresh = Benchmark.run(name + " sax, new parser", new Benchmark.Body() {
+                @Override
+                public void run() throws Exception {
+                    ForecastResult result = new ForecastResult(FORECAST_DAYS);
+                    SAXParserFactory.newInstance().newSAXParser().parse(
+                            new InputSource(new ByteArrayInputStream(xml)),
+                            new WeatherHandler(result));
+                }
+            });
+            Benchmark reused = Benchmark.run(name + " sax, reused parser",
+                    new Benchmark.Body() {
+                @Override
+                public void run() throws Exception {
+                    parseSax(new ByteArrayInputStream(xml));
+                }
+            });
+            assertTrue(name, reused.allocationsPerRun <= fresh.allocationsPerRun);
+        }
+    }
+
+    public void testJsonAgainstXml() throws Exception {
+        for (String name : FIXTURES) {
+            final byte[] xml = readAsset(name + ".xml");
+            final byte[] json = readAsset(name + ".json");
+            Benchmark.run(name + " xml (sax)", new Benchmark.Body() {
+                @Override
+                public void run() throws Exception {
+                    parseSax(new ByteArrayInputStream(xml));
+                }
+            });
+            Benchmark.run(name + " json", new Benchmark.Body() {
+                @Override
+                public void run() throws Exception {
+                    parseJson(new ByteArrayInputStream(json));
+                }
+            });
+            Log.i(TAG, name + " response size: xml=" + xml.length + " json=" + json.length);
+        }
+    }
+
+    private static ForecastResult parseSax(InputStream in) throws Exception {
+        ForecastResult result = new ForecastResult(FORECAST_DAYS);
+        new WeatherHandler(result).parse(new InputSource(in));
+        return result;
+    }
+
+    private static ForecastResult parsePull(InputStream in) throws Exception {
+        ForecastResult result = new ForecastResult(FORECAST_DAYS);
+        new WeatherPullParser(result).parse(in, "UTF-8");
+        return result;
+    }
+
+    private static ForecastResult parseJson(InputStream in) throws Exception {
+        ForecastResult result = new ForecastResult(FORECAST_DAYS);
+        new WeatherJsonParser(result).parse(new JsonReader(
+                new InputStreamReader(in, StandardCharsets.UTF_8)));
+        return result;
+    }
+
+    private byte[] readAsset(String name) throws IOException {
+        return Benchmark.readAsset(getInstrumentation().getContext(), "forecast/" + name);
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long mCount;
+
+        CountingInputStream(byte[] data) {
+            super(new ByteArrayInputStream(data));
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+    }
+}
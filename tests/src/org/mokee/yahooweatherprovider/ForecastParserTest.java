@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import org.xml.sax.InputSource;
+
+import android.test.InstrumentationTestCase;
+import android.util.JsonReader;
+import mokee.weather.WeatherInfo.DayForecast;
+
+/**
+ * Feeds recorded format=xml and format=json responses of the same forecast to every
+ * parser engine and checks they all end up with the same ForecastResult.
+ */
+public class ForecastParserTest extends InstrumentationTestCase {
+
+    private static final int FORECAST_DAYS = 4;
+
+    public void testBeijing() throws Exception {
+        assertSameResults("beijing");
+    }
+
+    // Fahrenheit, unknown current condition, and the item's forecast array comes
+    // before its condition in the JSON flavour
+    public void testReorderedMembers() throws Exception {
+        ForecastResult result = assertSameResults("sunnyvale");
+        assertEquals(3200, result.conditionCode);
+        assertEquals(FORECAST_DAYS, result.forecasts.size());
+    }
+
+    // A single forecast day comes as an object instead of an array in JSON
+    public void testSingleForecast() throws Exception {
+        ForecastResult result = assertSameResults("reykjavik");
+        assertEquals(1, result.forecasts.size());
+    }
+
+    private ForecastResult assertSameResults(String name) throws Exception {
+        ForecastResult sax = new ForecastResult(FORECAST_DAYS);
+        InputStream in = open(name + ".xml");
+        try {
+            new WeatherHandler(sax).parse(new InputSource(in));
+        } finally {
+            in.close();
+        }
+
+        ForecastResult pull = new ForecastResult(FORECAST_DAYS);
+        in = open(name + ".xml");
+        try {
+            new WeatherPullParser(pull).parse(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+
+        ForecastResult json = new ForecastResult(FORECAST_DAYS);
+        in = open(name + ".json");
+        try {
+            new WeatherJsonParser(json).parse(new JsonReader(
+                    new InputStreamReader(in, StandardCharsets.UTF_8)));
+        } finally {
+            in.close();
+        }
+
+        assertTrue(name + " is incomplete", sax.isComplete());
+        assertEquals(name, sax, pull);
+        assertEquals(name, sax, json);
+        return sax;
+    }
+
+    private InputStream open(String asset) throws Exception {
+        return getInstrumentation().getContext().getAssets().open("forecast/" + asset);
+    }
+
+    private static void assertEquals(String name, ForecastResult expected,
+            ForecastResult actual) {
+        assertEquals(name + " city", expected.city, actual.city);
+        assertEquals(name + " temperature unit", expected.temperatureUnit,
+                actual.temperatureUnit);
+        assertEquals(name + " speed unit", expected.speedUnit, actual.speedUnit);
+        assertEquals(name + " wind direction", expected.windDirection, actual.windDirection);
+        assertEquals(name + " wind speed", expected.windSpeed, actual.windSpeed);
+        assertEquals(name + " humidity", expected.humidity, actual.humidity);
+        assertEquals(name + " condition", expected.conditionCode, actual.conditionCode);
+        assertEquals(name + " temperature", expected.temperature, actual.temperature);
+        assertEquals(name + " forecast days", expected.forecasts.size(),
+                actual.forecasts.size());
+        for (int i = 0; i < expected.forecasts.size(); i++) {
+            DayForecast expectedDay = expected.forecasts.get(i);
+            DayForecast actualDay = actual.forecasts.get(i);
+            assertEquals(name + " day " + i + " condition", expectedDay.getConditionCode(),
+                    actualDay.getConditionCode());
+            assertEquals(name + " day " + i + " low", expectedDay.getLow(),
+                    actualDay.getLow());
+            assertEquals(name + " day " + i + " high", expectedDay.getHigh(),
+                    actualDay.getHigh());
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import junit.framework.TestCase;
+
+public class GeoHashTest extends TestCase {
+
+    private static final double EPSILON = 1e-9;
+
+    public void testKnownVectors() {
+        assertEquals("ezs42", GeoHash.encode(42.6, -5.6, 5));
+        assertEquals("u4pruydqqvj", GeoHash.encode(57.64911, 10.40744, 11));
+        assertEquals("9q9hw", GeoHash.encode(37.3688, -122.0363, 5));
+        assertEquals("wx4g0", GeoHash.encode(39.9042, 116.4074, 5));
+    }
+
+    public void testLongerPrecisionRefinesCell() {
+        String coarse = GeoHash.encode(57.64911, 10.40744, 5);
+        String fine = GeoHash.encode(57.64911, 10.40744, 11);
+        assertEquals(5, coarse.length());
+        assertTrue(fine.startsWith(coarse));
+    }
+
+    public void testWorldCorners() {
+        assertEquals("00000", GeoHash.encode(-90, -180, 5));
+        assertEquals("zzzzz", GeoHash.encode(90, 180, 5));
+    }
+
+    public void testCellBoundariesAtOrigin() {
+        // A point on a boundary belongs to the cell above/east of it
+        assertEquals("s0000", GeoHash.encode(0, 0, 5));
+        assertEquals("7zzzz", GeoHash.encode(-EPSILON, -EPSILON, 5));
+        assertEquals("ebpbp", GeoHash.encode(EPSILON, -EPSILON, 5));
+        assertEquals("kpbpb", GeoHash.encode(-EPSILON, EPSILON, 5));
+    }
+
+    public void testNearbyPointsShareCell() {
+        // ezs42 spans 42.583..42.627 N, 5.625..5.581 W
+        assertEquals("ezs42", GeoHash.encode(42.59, -5.62, 5));
+        assertEquals("ezs42", GeoHash.encode(42.62, -5.59, 5));
+        assertFalse("ezs42".equals(GeoHash.encode(42.64, -5.6, 5)));
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import junit.framework.TestCase;
+
+/**
+ * Runs HttpRetriever against a local server that stalls or fails on purpose.
+ */
+public class HttpRetrieverTest extends TestCase {
+
+    // Far beyond the bounds below, so only cancellation or the deadline can end a stall
+    private static final int STALL_TIMEOUT_MS = 30 * 1000;
+    private static final long CANCEL_DELAY_MS = 500L;
+    // How long a cancelled or expired retrieve() may take to give the thread back
+    private static final long MAX_RELEASE_MS = 2000L;
+
+    private static final HttpRetriever.ResponseHandler<String> READ_BODY =
+            new HttpRetriever.ResponseHandler<String>() {
+        @Override
+        public String handleResponse(InputStream inputStream, String charset)
+                throws IOException {
+            Reader reader = new InputStreamReader(inputStream, HttpRetriever.toCharset(charset));
+            StringBuilder builder = new StringBuilder();
+            char[] buffer = new char[256];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                builder.append(buffer, 0, read);
+            }
+            return builder.toString();
+        }
+    };
+
+    private TestServer mServer;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mServer != null) {
+            mServer.shutdown();
+        }
+        HttpRetriever.reset();
+        super.tearDown();
+    }
+
+    public void testCancelReleasesStalledRequest() throws Exception {
+        mServer = new TestServer(TestServer.STALL);
+        HttpRetriever.setTimeouts(STALL_TIMEOUT_MS, STALL_TIMEOUT_MS, STALL_TIMEOUT_MS);
+        CancellationSignal signal = new CancellationSignal();
+        cancelLater(signal, CANCEL_DELAY_MS);
+
+        long start = SystemClock.elapsedRealtime();
+        String body = HttpRetriever.retrieve(mServer.getUrl(), READ_BODY, signal);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        assertNull(body);
+        assertTrue("Released after " + elapsed + "ms",
+                elapsed < CANCEL_DELAY_MS + MAX_RELEASE_MS);
+    }
+
+    public void testCancelledSignalSkipsRequest() throws Exception {
+        mServer = new TestServer(200);
+        CancellationSignal signal = new CancellationSignal();
+        signal.cancel();
+
+        assertNull(HttpRetriever.retrieve(mServer.getUrl(), READ_BODY, signal));
+        assertEquals(0, mServer.getRequestCount());
+    }
+
+    public void testDeadlineReleasesStalledRequest() throws Exception {
+        final long deadline = 1000L;
+        mServer = new TestServer(TestServer.STALL);
+        HttpRetriever.setTimeouts(STALL_TIMEOUT_MS, STALL_TIMEOUT_MS, deadline);
+
+        long start = SystemClock.elapsedRealtime();
+        String body = HttpRetriever.retrieve(mServer.getUrl(), READ_BODY,
+                new CancellationSignal());
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        assertNull(body);
+        assertTrue("Released after " + elapsed + "ms", elapsed < deadline + MAX_RELEASE_MS);
+    }
+
+    public void testResponse() throws Exception {
+        mServer = new TestServer(200);
+
+        assertEquals(TestServer.BODY, HttpRetriever.retrieve(mServer.getUrl(), READ_BODY,
+                new CancellationSignal()));
+    }
+
+    public void testServerErrorIsRetried() throws Exception {
+        mServer = new TestServer(503, 500, 200);
+
+        assertEquals(TestServer.BODY, HttpRetriever.retrieve(mServer.getUrl(), READ_BODY,
+                new CancellationSignal()));
+        assertEquals(3, mServer.getRequestCount());
+    }
+
+    public void testClientErrorIsNotRetried() throws Exception {
+        mServer = new TestServer(404, 200);
+
+        assertNull(HttpRetriever.retrieve(mServer.getUrl(), READ_BODY,
+                new CancellationSignal()));
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    public void testRetriesStopAtDeadline() throws Exception {
+        // Shorter than most backoff delays, a retry mustn't sleep past it
+        final long deadline = 500L;
+        mServer = new TestServer(503);
+        HttpRetriever.setTimeouts(STALL_TIMEOUT_MS, STALL_TIMEOUT_MS, deadline);
+
+        long start = SystemClock.elapsedRealtime();
+        String body = HttpRetriever.retrieve(mServer.getUrl(), READ_BODY,
+                new CancellationSignal());
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        assertNull(body);
+        assertTrue("Gave up after " + elapsed + "ms", elapsed < deadline + MAX_RELEASE_MS / 4);
+    }
+
+    public void testOpenBreakerKeepsRequestsOffTheNetwork() throws Exception {
+        mServer = new TestServer(503);
+        // Three failed attempts, then two more trip the breaker during the retries
+        assertNull(HttpRetriever.retrieve(mServer.getUrl(), READ_BODY,
+                new CancellationSignal()));
+        assertNull(HttpRetriever.retrieve(mServer.getUrl(), READ_BODY,
+                new CancellationSignal()));
+        int requests = mServer.getRequestCount();
+        assertEquals(5, requests);
+
+        // Only the (empty) HTTP cache is asked now
+        assertNull(HttpRetriever.retrieve(mServer.getUrl(), READ_BODY,
+                new CancellationSignal()));
+        assertEquals(requests, mServer.getRequestCount());
+    }
+
+    private static void cancelLater(final CancellationSignal signal, final long delay) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SystemClock.sleep(delay);
+                signal.cancel();
+            }
+        }).start();
+    }
+}
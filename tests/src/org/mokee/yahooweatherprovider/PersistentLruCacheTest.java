@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+
+public class PersistentLruCacheTest extends InstrumentationTestCase {
+
+    private static final int MAX_ENTRIES = 3;
+    private static final long MAX_AGE = 60L * 1000L;
+    private static final long SHORT_MAX_AGE = 200L;
+
+    private static final PersistentLruCache.Codec<String> CODEC =
+            new PersistentLruCache.Codec<String>() {
+        @Override
+        public JSONObject encode(String value) throws JSONException {
+            return new JSONObject().put("value", value);
+        }
+
+        @Override
+        public String decode(JSONObject json) throws JSONException {
+            return json.getString("value");
+        }
+    };
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getInstrumentation().getContext().getCacheDir(), "lru_test.json");
+        deleteFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteFile();
+        super.tearDown();
+    }
+
+    public void testGetReturnsStoredValue() {
+        PersistentLruCache<String> cache = newCache(MAX_AGE);
+        assertNull(cache.get("a"));
+        cache.put("a", "1");
+        assertEquals("1", cache.get("a"));
+    }
+
+    public void testEntriesExpire() {
+        PersistentLruCache<String> cache = newCache(SHORT_MAX_AGE);
+        cache.put("a", "1");
+        assertEquals("1", cache.get("a"));
+
+        SystemClock.sleep(SHORT_MAX_AGE + SHORT_MAX_AGE / 2);
+        assertNull(cache.get("a"));
+        assertTrue(cache.snapshot().isEmpty());
+    }
+
+    public void testExpiredEntriesAreNotReloaded() {
+        newCache(SHORT_MAX_AGE).put("a", "1");
+        SystemClock.sleep(SHORT_MAX_AGE + SHORT_MAX_AGE / 2);
+
+        assertTrue(newCache(SHORT_MAX_AGE).snapshot().isEmpty());
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        PersistentLruCache<String> cache = newCache(MAX_AGE);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        // Touching a makes b the least recently used
+        assertEquals("1", cache.get("a"));
+        cache.put("d", "4");
+
+        assertKeys(cache, "c", "a", "d");
+        assertNull(cache.get("b"));
+    }
+
+    public void testReloadRestoresOrder() {
+        PersistentLruCache<String> cache = newCache(MAX_AGE);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        cache.get("a");
+        // Reads alone aren't persisted, the next write carries the new order
+        cache.put("b", "5");
+
+        PersistentLruCache<String> reloaded = newCache(MAX_AGE);
+        assertKeys(reloaded, "c", "a", "b");
+        assertEquals("5", reloaded.get("b"));
+
+        // The restored order drives eviction as before
+        reloaded.put("d", "4");
+        assertKeys(reloaded, "a", "b", "d");
+    }
+
+    public void testGetEntryIfLoaded() {
+        newCache(MAX_AGE).put("a", "1");
+
+        PersistentLruCache<String> cache = newCache(MAX_AGE);
+        assertNull(cache.getEntryIfLoaded("a"));
+        cache.preload();
+        PersistentLruCache.Entry<String> entry = cache.getEntryIfLoaded("a");
+        assertNotNull(entry);
+        assertEquals("1", entry.value);
+    }
+
+    private PersistentLruCache<String> newCache(long maxAge) {
+        return new PersistentLruCache<>(mFile, MAX_ENTRIES, maxAge, CODEC);
+    }
+
+    private static void assertKeys(PersistentLruCache<String> cache, String... keys) {
+        assertEquals(Arrays.asList(keys), new ArrayList<>(cache.snapshot().keySet()));
+    }
+
+    private void deleteFile() {
+        mFile.delete();
+        // AtomicFile's backup, left behind if a write was interrupted
+        new File(mFile.getPath() + ".bak").delete();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.test.InstrumentationTestCase;
+import android.util.JsonReader;
+import mokee.weather.WeatherLocation;
+
+/**
+ * Compares the streaming places decoder with building the whole JSONObject tree, on a
+ * lookup returning many places (assets/places). Results are logged, see Benchmark.
+ */
+public class PlaceParserBenchmark extends InstrumentationTestCase {
+
+    private static final String[] LOCALITY_NAMES = new String[] {
+        "locality1", "locality2", "admin3", "admin2", "admin1"
+    };
+
+    public void testStreamingAgainstTree() throws Exception {
+        final byte[] json = Benchmark.readAsset(getInstrumentation().getContext(),
+                "places/springfield.json");
+
+        Benchmark tree = Benchmark.run("places tree", new Benchmark.Body() {
+            @Override
+            public void run() throws Exception {
+                parseTree(json);
+            }
+        });
+        Benchmark streaming = Benchmark.run("places streaming", new Benchmark.Body() {
+            @Override
+            public void run() throws Exception {
+                parseStreaming(json);
+            }
+        });
+
+        // Both have to agree before the numbers mean anything
+        ArrayList<WeatherLocation> expected = parseTree(json);
+        ArrayList<WeatherLocation> actual = parseStreaming(json);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getCityId(), actual.get(i).getCityId());
+            assertEquals(expected.get(i).getCity(), actual.get(i).getCity());
+            assertEquals(expected.get(i).getCountryId(), actual.get(i).getCountryId());
+        }
+        assertTrue(streaming.allocationsPerRun <= tree.allocationsPerRun);
+    }
+
+    private static ArrayList<WeatherLocation> parseStreaming(byte[] json) throws Exception {
+        final ArrayList<WeatherLocation> results = new ArrayList<>();
+        new PlaceJsonParser(new PlaceJsonParser.Listener() {
+            @Override
+            public boolean onPlace(WeatherLocation location) {
+                results.add(location);
+                return true;
+            }
+        }).parse(new JsonReader(new InputStreamReader(
+                new ByteArrayInputStream(json), StandardCharsets.UTF_8)));
+        return results;
+    }
+
+    /**
+     * What the lookup used to do: read the whole response into a String, build the
+     * JSONObject tree and pick the places out of it.
+     */
+    private static ArrayList<WeatherLocation> parseTree(byte[] json) throws Exception {
+        JSONObject results = new JSONObject(new String(json, StandardCharsets.UTF_8))
+                .getJSONObject("query").getJSONObject("results");
+        JSONArray places = results.optJSONArray("place");
+        if (places == null) {
+            places = new JSONArray();
+            places.put(results.getJSONObject("place"));
+        }
+
+        ArrayList<WeatherLocation> locations = new ArrayList<>();
+        for (int i = 0; i < places.length(); i++) {
+            WeatherLocation location = parsePlace(places.getJSONObject(i));
+            if (location != null) {
+                locations.add(location);
+            }
+        }
+        return locations;
+    }
+
+    private static WeatherLocation parsePlace(JSONObject place) throws JSONException {
+        JSONObject country = place.getJSONObject("country");
+        String resultId = place.getString("woeid");
+        String resultCountryId = country.getString("code");
+        String resultCountry = country.getString("content");
+        String resultCity = null;
+
+        for (String name : LOCALITY_NAMES) {
+            if (!place.isNull(name)) {
+                JSONObject locality = place.getJSONObject(name);
+                resultCity = locality.getString("content");
+                if (locality.has("woeid")) {
+                    resultId = locality.getString("woeid");
+                }
+                break;
+            }
+        }
+
+        if (resultCity == null) {
+            return null;
+        }
+        return new WeatherLocation.Builder(resultId, resultCity)
+                .setCountryId(resultCountryId)
+                .setCountry(resultCountry)
+                .build();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import android.os.SystemClock;
+import junit.framework.TestCase;
+
+public class RateLimiterTest extends TestCase {
+
+    private static final long NEVER = 60L * 60L * 1000L;
+
+    public void testKeyBurst() {
+        RateLimiter limiter = new RateLimiter(4, 2, NEVER, 10, NEVER);
+
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("b"));
+    }
+
+    public void testGlobalBurst() {
+        RateLimiter limiter = new RateLimiter(4, 5, NEVER, 3, NEVER);
+
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("b"));
+        assertTrue(limiter.tryAcquire("c"));
+        assertFalse(limiter.tryAcquire("d"));
+    }
+
+    public void testRefill() {
+        final long refill = 100L;
+        RateLimiter limiter = new RateLimiter(4, 1, refill, 10, refill);
+
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+        SystemClock.sleep(refill + refill / 2);
+        assertTrue(limiter.tryAcquire("a"));
+    }
+
+    public void testRelease() {
+        RateLimiter limiter = new RateLimiter(4, 1, NEVER, 2, NEVER);
+
+        assertTrue(limiter.tryAcquire("a"));
+        limiter.release("a");
+        assertTrue(limiter.tryAcquire("a"));
+        // The global budget isn't refunded
+        assertFalse(limiter.tryAcquire("b"));
+    }
+
+    public void testForgottenKeyStartsOver() {
+        RateLimiter limiter = new RateLimiter(2, 1, NEVER, 10, NEVER);
+
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("b"));
+        assertTrue(limiter.tryAcquire("c"));
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("c"));
+    }
+}
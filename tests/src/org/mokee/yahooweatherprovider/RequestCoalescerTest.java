@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class RequestCoalescerTest extends TestCase {
+
+    private static final int SOAK_THREADS = 4;
+    private static final int SOAK_REQUESTS_PER_THREAD = 5000;
+    private static final int SOAK_KEYS = 16;
+
+    private RequestCoalescer<Object> mCoalescer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCoalescer = new RequestCoalescer<>();
+    }
+
+    public void testIdenticalRequestsShareFetch() {
+        TestFetch fetch = new TestFetch("a");
+        Object first = new Object();
+        Object second = new Object();
+        mCoalescer.start(fetch, first);
+
+        assertTrue(mCoalescer.attach("a", second));
+        assertFalse(mCoalescer.attach("b", new Object()));
+        assertEquals(2, mCoalescer.getInFlightCount());
+        assertEquals(1, mCoalescer.getFetchCount());
+    }
+
+    public void testCompletionDrains() {
+        TestFetch fetch = new TestFetch("a");
+        Object first = new Object();
+        Object second = new Object();
+        mCoalescer.start(fetch, first);
+        mCoalescer.attach("a", second);
+
+        // A failed fetch is retired the same way, only the answer differs
+        ArrayList<Object> waiters = mCoalescer.finish(fetch);
+        assertEquals(2, waiters.size());
+        for (Object request : waiters) {
+            assertTrue(mCoalescer.complete(request) >= 0);
+        }
+        assertDrained();
+        // A finished fetch takes no more waiters
+        assertFalse(mCoalescer.attach("a", new Object()));
+        assertFalse(fetch.mAbandoned);
+    }
+
+    public void testCancellingLastWaiterAbandonsFetch() {
+        TestFetch fetch = new TestFetch("a");
+        Object first = new Object();
+        Object second = new Object();
+        mCoalescer.start(fetch, first);
+        mCoalescer.attach("a", second);
+
+        assertTrue(mCoalescer.cancel(first));
+        assertFalse(fetch.mAbandoned);
+        assertTrue(mCoalescer.isRunning("a"));
+
+        assertTrue(mCoalescer.cancel(second));
+        assertTrue(fetch.mAbandoned);
+        assertFalse(mCoalescer.cancel(second));
+        assertDrained();
+    }
+
+    public void testCancelledRequestIsNotCompleted() {
+        TestFetch fetch = new TestFetch("a");
+        Object first = new Object();
+        Object second = new Object();
+        mCoalescer.start(fetch, first);
+        mCoalescer.attach("a", second);
+
+        ArrayList<Object> waiters = mCoalescer.finish(fetch);
+        // Cancelled after the result came in, but before it was delivered
+        assertTrue(mCoalescer.cancel(second));
+        assertFalse(fetch.mAbandoned);
+        assertTrue(mCoalescer.complete(waiters.get(0)) >= 0);
+        assertEquals(-1, mCoalescer.complete(waiters.get(1)));
+        assertDrained();
+    }
+
+    public void testBackgroundFetchTakesWaiters() {
+        TestFetch fetch = new TestFetch("a");
+        mCoalescer.start(fetch, null);
+        assertEquals(0, mCoalescer.getInFlightCount());
+
+        Object request = new Object();
+        assertTrue(mCoalescer.attach("a", request));
+        ArrayList<Object> waiters = mCoalescer.finish(fetch);
+        assertEquals(1, waiters.size());
+        mCoalescer.complete(request);
+        assertDrained();
+    }
+
+    public void testAbortAllDrains() {
+        TestFetch a = new TestFetch("a");
+        TestFetch b = new TestFetch("b");
+        mCoalescer.start(a, new Object());
+        mCoalescer.attach("a", new Object());
+        mCoalescer.start(b, new Object());
+
+        assertEquals(3, mCoalescer.abortAll().size());
+        assertTrue(a.mAbandoned);
+        assertTrue(b.mAbandoned);
+        assertDrained();
+    }
+
+    /**
+     * Several threads submit and cancel requests for a handful of keys while another
+     * one finishes the fetches, like results coming back from the network. Every
+     * request must be answered or cancelled exactly once and nothing may be left behind.
+     */
+    public void testSoak() throws Exception {
+        final LinkedBlockingQueue<TestFetch> started = new LinkedBlockingQueue<>();
+        final AtomicInteger submitted = new AtomicInteger();
+        final AtomicInteger cancelled = new AtomicInteger();
+        final AtomicInteger answered = new AtomicInteger();
+        final TestFetch done = new TestFetch("done");
+
+        Thread finisher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    TestFetch fetch;
+                    while ((fetch = started.take()) != done) {
+                        for (Object request : mCoalescer.finish(fetch)) {
+                            if (mCoalescer.complete(request) >= 0) {
+                                answered.incrementAndGet();
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        finisher.start();
+
+        Thread[] submitters = new Thread[SOAK_THREADS];
+        for (int i = 0; i < submitters.length; i++) {
+            final Random random = new Random(i);
+            submitters[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < SOAK_REQUESTS_PER_THREAD; j++) {
+                        String key = "key" + random.nextInt(SOAK_KEYS);
+                        Object request = new Object();
+                        submitted.incrementAndGet();
+                        if (!mCoalescer.attach(key, request)) {
+                            TestFetch fetch = new TestFetch(key);
+                            mCoalescer.start(fetch, request);
+                            started.add(fetch);
+                        }
+                        if (random.nextInt(4) == 0 && mCoalescer.cancel(request)) {
+                            cancelled.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            submitters[i].start();
+        }
+        for (Thread submitter : submitters) {
+            submitter.join();
+        }
+        started.add(done);
+        finisher.join(TimeUnit.SECONDS.toMillis(30));
+        assertFalse(finisher.isAlive());
+
+        assertEquals(submitted.get(), answered.get() + cancelled.get());
+        assertDrained();
+    }
+
+    private void assertDrained() {
+        assertEquals(0, mCoalescer.getInFlightCount());
+        assertEquals(0, mCoalescer.getFetchCount());
+    }
+
+    private static class TestFetch extends RequestCoalescer.Fetch<Object> {
+        volatile boolean mAbandoned;
+
+        TestFetch(String key) {
+            super(key);
+        }
+
+        @Override
+        protected void onAbandoned() {
+            mAbandoned = true;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.yahooweatherprovider;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal HTTP server on the loopback interface that misbehaves on request. Each
+ * connection gets the next status code of the script, the last one repeating; STALL
+ * accepts the request and never answers it.
+ */
+class TestServer {
+
+    static final int STALL = -1;
+    static final String BODY = "ok";
+
+    private final ServerSocket mServerSocket;
+    private final int[] mScript;
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final List<Socket> mSockets = new ArrayList<>();
+
+    TestServer(int... script) throws IOException {
+        mScript = script;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "TestServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/";
+    }
+
+    /**
+     * Returns how many requests reached the server so far.
+     */
+    int getRequestCount() {
+        return mRequests.get();
+    }
+
+    void shutdown() throws IOException {
+        mServerSocket.close();
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                final Socket socket = mServerSocket.accept();
+                synchronized (mSockets) {
+                    mSockets.add(socket);
+                }
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(socket);
+                        } catch (IOException e) {
+                            // The client gave up
+                        }
+                    }
+                }, "TestServer connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            // Shut down
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), StandardCharsets.US_ASCII));
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            // Skip the request line and headers
+        }
+        int request = mRequests.getAndIncrement();
+        int status = mScript[Math.min(request, mScript.length - 1)];
+        if (status == STALL) {
+            // Keep the connection open until the client or shutdown() closes it
+            return;
+        }
+        byte[] body = BODY.getBytes(StandardCharsets.UTF_8);
+        String headers = "HTTP/1.1 " + status + " Test\r\n"
+                + "Content-Type: text/plain; charset=utf-8\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n"
+                + "\r\n";
+        OutputStream out = socket.getOutputStream();
+        out.write(headers.getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+        socket.close();
+    }
+}